@@ -1,22 +1,37 @@
 package moe.shizuku.manager
 
 import android.os.Bundle
+import android.os.IBinder
+import android.os.SystemClock
 import androidx.core.os.bundleOf
 import moe.shizuku.api.BinderContainer
 import moe.shizuku.manager.utils.Logger.LOGGER
+import moe.shizuku.starter.AttachCallback
+import moe.shizuku.starter.ServiceStarter
 import rikka.shizuku.Shizuku
 import rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_TOKEN
 import rikka.shizuku.ShizukuProvider
 import rikka.shizuku.server.ktx.workerHandler
-import java.util.concurrent.CountDownLatch
-import java.util.concurrent.TimeUnit
-import java.util.concurrent.TimeoutException
+import java.io.FileDescriptor
+import java.io.PrintWriter
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 class ShizukuManagerProvider : ShizukuProvider() {
 
     companion object {
         private const val EXTRA_BINDER = "moe.shizuku.privileged.api.intent.extra.BINDER"
         private const val METHOD_SEND_USER_SERVICE = "sendUserService"
+
+        private const val ATTACH_TIMEOUT = 5 * 1000L
+
+        private val attachedAtOnce = AtomicInteger()
+        private val deferred = AtomicInteger()
+        private val attachedLater = AtomicInteger()
+        private val timedOut = AtomicInteger()
+        private val failed = AtomicInteger()
+        private val maxDeferLatency = AtomicLong()
     }
 
     override fun onCreate(): Boolean {
@@ -33,44 +48,95 @@ class ShizukuManagerProvider : ShizukuProvider() {
 
                 val token = extras.getString(USER_SERVICE_ARG_TOKEN) ?: return null
                 val binder = extras.getParcelable<BinderContainer>(EXTRA_BINDER)?.binder ?: return null
+                val hostBinder = extras.getParcelable<BinderContainer>(ServiceStarter.EXTRA_HOST_BINDER)?.binder
+                val callback = extras.getParcelable<BinderContainer>(ServiceStarter.EXTRA_ATTACH_CALLBACK)?.binder ?: return null
 
-                val countDownLatch = CountDownLatch(1)
-                var reply: Bundle? = Bundle()
+                sendUserService(token, binder, hostBinder, callback)
+            } catch (e: Throwable) {
+                LOGGER.e(e, "sendUserService")
+                null
+            }
+        } else {
+            super.call(method, arg, extras)
+        }
+    }
 
-                val listener = object : Shizuku.OnBinderReceivedListener {
+    private fun attachUserService(token: String, binder: IBinder, hostBinder: IBinder?): Boolean {
+        return try {
+            Shizuku.attachUserService(binder, bundleOf(
+                USER_SERVICE_ARG_TOKEN to token,
+                ServiceStarter.EXTRA_HOST_BINDER to hostBinder
+            ))
+            true
+        } catch (e: Throwable) {
+            LOGGER.e(e, "attachUserService $token")
+            false
+        }
+    }
 
-                    override fun onBinderReceived() {
-                        try {
-                            Shizuku.attachUserService(binder, bundleOf(
-                                USER_SERVICE_ARG_TOKEN to token
-                            ))
-                            reply!!.putParcelable(EXTRA_BINDER, BinderContainer(Shizuku.getBinder()))
-                        } catch (e: Throwable) {
-                            LOGGER.e(e, "attachUserService $token")
-                            reply = null
-                        }
+    /**
+     * Attaches the service right away if the server binder is here. Otherwise, replies with
+     * [ServiceStarter.EXTRA_PENDING] and calls [AttachCallback] once the binder is received or
+     * [ATTACH_TIMEOUT] has passed, so that the binder thread is never held.
+     */
+    private fun sendUserService(token: String, binder: IBinder, hostBinder: IBinder?, callback: IBinder): Bundle? {
+        if (Shizuku.pingBinder()) {
+            if (!attachUserService(token, binder, hostBinder)) {
+                failed.incrementAndGet()
+                return null
+            }
+            attachedAtOnce.incrementAndGet()
+            return bundleOf(EXTRA_BINDER to BinderContainer(Shizuku.getBinder()))
+        }
 
-                        Shizuku.removeBinderReceivedListener(this)
+        deferred.incrementAndGet()
+        val startTime = SystemClock.elapsedRealtime()
+        val finished = AtomicBoolean()
 
-                        countDownLatch.countDown()
-                    }
-                }
+        val listener = object : Shizuku.OnBinderReceivedListener {
 
-                Shizuku.addBinderReceivedListenerSticky(listener, workerHandler)
+            override fun onBinderReceived() {
+                Shizuku.removeBinderReceivedListener(this)
+                if (!finished.compareAndSet(false, true)) return
 
-                return try {
-                    countDownLatch.await(5, TimeUnit.SECONDS)
-                    reply
-                } catch (e: TimeoutException) {
-                    LOGGER.e(e, "Binder not received in 5s")
-                    null
+                val server = if (attachUserService(token, binder, hostBinder)) Shizuku.getBinder() else null
+                if (server != null) {
+                    attachedLater.incrementAndGet()
+                    val elapsed = SystemClock.elapsedRealtime() - startTime
+                    maxDeferLatency.getAndUpdate { maxOf(it, elapsed) }
+                } else {
+                    failed.incrementAndGet()
                 }
-            } catch (e: Throwable) {
-                LOGGER.e(e, "sendUserService")
-                null
+                sendResult(token, callback, server)
             }
-        } else {
-            super.call(method, arg, extras)
         }
+
+        workerHandler.postDelayed({
+            if (finished.compareAndSet(false, true)) {
+                Shizuku.removeBinderReceivedListener(listener)
+                timedOut.incrementAndGet()
+                LOGGER.w("Binder not received in ${ATTACH_TIMEOUT}ms, service $token not attached")
+                sendResult(token, callback, null)
+            }
+        }, ATTACH_TIMEOUT)
+
+        Shizuku.addBinderReceivedListenerSticky(listener, workerHandler)
+
+        return bundleOf(ServiceStarter.EXTRA_PENDING to true)
+    }
+
+    private fun sendResult(token: String, callback: IBinder, server: IBinder?) {
+        try {
+            AttachCallback.send(callback, server)
+        } catch (e: Throwable) {
+            LOGGER.w(e, "callback of $token")
+        }
+    }
+
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        writer.println("sendUserService:")
+        writer.println("  attachedAtOnce=${attachedAtOnce.get()}, deferred=${deferred.get()}, " +
+                "attachedLater=${attachedLater.get()}, timedOut=${timedOut.get()}, failed=${failed.get()}, " +
+                "maxDeferLatency=${maxDeferLatency.get()} ms")
     }
 }
@@ -1,8 +1,12 @@
 package moe.shizuku.manager.authorization
 
+import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
+import android.os.Build
+import android.os.Bundle
 import android.os.Parcel
+import android.util.SparseBooleanArray
 import moe.shizuku.manager.BuildConfig
 import moe.shizuku.manager.Manifest
 import moe.shizuku.manager.utils.Logger.LOGGER
@@ -18,6 +22,17 @@ object AuthorizationManager {
     private const val FLAG_DENIED = 1 shl 2
     private const val MASK_PERMISSION = FLAG_ALLOWED or FLAG_DENIED
 
+    private const val SYNC_PAGE_SIZE = 200
+    private const val SYNC_MAX_ATTEMPTS = 3
+
+    /**
+     * Local copy of the server's application list keyed by "uid:packageName", valid for
+     * [syncEpoch] and [syncGeneration].
+     */
+    private val syncedPackages = LinkedHashMap<String, PackageInfo>()
+    private var syncEpoch = 0L
+    private var syncGeneration = -1L
+
     private fun getApplications(userId: Int): List<PackageInfo> {
         val data = Parcel.obtain()
         val reply = Parcel.obtain()
@@ -38,6 +53,206 @@ object AuthorizationManager {
         }
     }
 
+    /**
+     * Bring the local copy of the application list up to date with only what changed since the
+     * last sync. Null if the server doesn't support it.
+     */
+    @Synchronized
+    private fun syncApplications(): List<PackageInfo>? {
+        repeat(SYNC_MAX_ATTEMPTS) {
+            val synced = syncApplicationsOnce() ?: return null
+            if (synced) {
+                return ArrayList(syncedPackages.values)
+            }
+        }
+        throw IllegalStateException("Application list kept changing while syncing")
+    }
+
+    /**
+     * @return true if synced, false if the list changed between pages, null if not supported
+     */
+    private fun syncApplicationsOnce(): Boolean? {
+        val changed = ArrayList<PackageInfo>()
+        val removed = ArrayList<String>()
+        var epoch = 0L
+        var generation = 0L
+        var full = false
+        var total = 0
+        var offset = 0
+        do {
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            val page = try {
+                data.writeInterfaceToken("moe.shizuku.server.IShizukuService")
+                data.writeInt(-1)
+                data.writeLong(syncEpoch)
+                data.writeLong(syncGeneration)
+                data.writeInt(offset)
+                data.writeInt(SYNC_PAGE_SIZE)
+                val handled = try {
+                    Shizuku.getBinder()!!.transact(ServerConstants.BINDER_TRANSACTION_syncApplications, data, reply, 0)
+                } catch (e: Throwable) {
+                    throw RuntimeException(e)
+                }
+                if (!handled) {
+                    return null
+                }
+                reply.readException()
+
+                val pageEpoch = reply.readLong()
+                val pageGeneration = reply.readLong()
+                val pageFull = reply.readInt() != 0
+                total = reply.readInt()
+                if (offset == 0) {
+                    epoch = pageEpoch
+                    generation = pageGeneration
+                    full = pageFull
+                } else if (pageEpoch != epoch || pageGeneration != generation) {
+                    return false
+                }
+
+                val page = readApplicationDescriptors(reply)
+                repeat(reply.readInt()) {
+                    val packageName = reply.readString()
+                    removed.add("${reply.readInt()}:$packageName")
+                }
+                offset += page.size
+                changed.addAll(page)
+                page
+            } finally {
+                reply.recycle()
+                data.recycle()
+            }
+        } while (page.isNotEmpty() && offset < total)
+
+        if (full) {
+            syncedPackages.clear()
+        }
+        for (key in removed) {
+            syncedPackages.remove(key)
+        }
+        for (pi in changed) {
+            syncedPackages["${pi.applicationInfo.uid}:${pi.packageName}"] = pi
+        }
+        syncEpoch = epoch
+        syncGeneration = generation
+        return true
+    }
+
+    /**
+     * Same as [getApplications], but only with what the app list shows: the returned [PackageInfo]s
+     * carry package name, version code and an [ApplicationInfo] good for loading label and icon,
+     * with metaData holding only `V3_REQUIRES_ROOT`. Null if the server doesn't support it.
+     */
+    private fun getApplicationDescriptors(userId: Int): List<PackageInfo>? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        return try {
+            data.writeInterfaceToken("moe.shizuku.server.IShizukuService")
+            data.writeInt(userId)
+            val handled = try {
+                Shizuku.getBinder()!!.transact(ServerConstants.BINDER_TRANSACTION_getApplicationDescriptors, data, reply, 0)
+            } catch (e: Throwable) {
+                throw RuntimeException(e)
+            }
+            if (!handled) {
+                return null
+            }
+            reply.readException()
+            readApplicationDescriptors(reply)
+        } finally {
+            reply.recycle()
+            data.recycle()
+        }
+    }
+
+    private fun readApplicationDescriptors(parcel: Parcel): List<PackageInfo> {
+        val count = parcel.readInt()
+        val list = ArrayList<PackageInfo>(count)
+        repeat(count) {
+            val pi = PackageInfo()
+            val ai = ApplicationInfo()
+            pi.packageName = parcel.readString()
+            ai.packageName = pi.packageName
+            ai.uid = parcel.readInt()
+            ai.flags = parcel.readInt()
+            val versionCode = parcel.readLong()
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                pi.longVersionCode = versionCode
+            } else {
+                @Suppress("DEPRECATION")
+                pi.versionCode = versionCode.toInt()
+            }
+            val descriptorFlags = parcel.readInt()
+            if (descriptorFlags and ServerConstants.APPLICATION_V3_REQUIRES_ROOT != 0) {
+                ai.metaData = Bundle().apply { putBoolean("moe.shizuku.client.V3_REQUIRES_ROOT", true) }
+            }
+            ai.sourceDir = parcel.readString()
+            ai.publicSourceDir = parcel.readString()
+            ai.splitSourceDirs = parcel.createStringArray()
+            ai.labelRes = parcel.readInt()
+            ai.icon = parcel.readInt()
+            ai.nonLocalizedLabel = parcel.readString()
+            ai.enabled = true
+            pi.applicationInfo = ai
+            list.add(pi)
+        }
+        return list
+    }
+
+    /**
+     * Flags of each uid followed by the number of allowed uids, or null if the server doesn't
+     * support the transaction.
+     */
+    private fun getFlagsForUids(uids: IntArray): IntArray? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        return try {
+            data.writeInterfaceToken("moe.shizuku.server.IShizukuService")
+            data.writeInt(MASK_PERMISSION)
+            data.writeIntArray(uids)
+            val handled = try {
+                Shizuku.getBinder()!!.transact(ServerConstants.BINDER_TRANSACTION_getFlagsForUids, data, reply, 0)
+            } catch (e: Throwable) {
+                throw RuntimeException(e)
+            }
+            if (!handled) {
+                return null
+            }
+            reply.readException()
+            reply.createIntArray()
+        } finally {
+            reply.recycle()
+            data.recycle()
+        }
+    }
+
+    /**
+     * Check [granted] for all [packages] with a single binder call when the server supports it.
+     *
+     * @return granted state keyed by uid, and the number of granted packages
+     */
+    fun granted(packages: List<PackageInfo>): Pair<SparseBooleanArray, Int> {
+        val granted = SparseBooleanArray(packages.size)
+        var count = 0
+
+        val flags = if (Shizuku.isPreV11()) null else getFlagsForUids(IntArray(packages.size) { packages[it].applicationInfo.uid })
+        if (flags != null && flags.size == packages.size + 1) {
+            for (i in packages.indices) {
+                granted.put(packages[i].applicationInfo.uid, (flags[i] and FLAG_ALLOWED) == FLAG_ALLOWED)
+            }
+            count = flags[packages.size]
+        } else {
+            for (pi in packages) {
+                val uid = pi.applicationInfo.uid
+                val allowed = granted.get(uid, false) || granted(pi.packageName, uid)
+                granted.put(uid, allowed)
+                if (allowed) count++
+            }
+        }
+        return granted to count
+    }
+
     fun getPackages(): List<PackageInfo> {
         val packages: MutableList<PackageInfo> = ArrayList()
         if (Shizuku.isPreV11() || (Shizuku.getVersion() == 11 && Shizuku.getServerPatchVersion() < 3)) {
@@ -57,7 +272,7 @@ object AuthorizationManager {
                 packages.add(pi)
             }
         } else {
-            packages.addAll(getApplications(-1))
+            packages.addAll(syncApplications() ?: getApplicationDescriptors(-1) ?: getApplications(-1))
         }
         return packages
     }
@@ -48,13 +48,17 @@ class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<Pa
 
     private var loadIconJob: Job? = null
 
+    private inline val appsAdapter get() = adapter as AppsAdapter
+
     override fun onClick(v: View) {
         val context = v.context
         try {
-            if (AuthorizationManager.granted(packageName, uid)) {
+            if (appsAdapter.isGranted(uid)) {
                 AuthorizationManager.revoke(packageName, uid)
+                appsAdapter.setGranted(uid, false)
             } else {
                 AuthorizationManager.grant(packageName, uid)
+                appsAdapter.setGranted(uid, true)
             }
         } catch (e: SecurityException) {
             val uid = try {
@@ -91,14 +95,14 @@ class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<Pa
             ai.loadLabel(pm)
         }
         pkg.text = ai.packageName
-        switchWidget.isChecked = AuthorizationManager.granted(packageName, uid)
+        switchWidget.isChecked = appsAdapter.isGranted(uid)
         root.visibility = if (ai.metaData != null && ai.metaData.getBoolean("moe.shizuku.client.V3_REQUIRES_ROOT")) View.VISIBLE else View.GONE
 
         loadIconJob = AppIconCache.loadIconBitmapAsync(context, ai, ai.uid / 100000, icon)
     }
 
     override fun onBind(payloads: List<Any>) {
-        switchWidget.isChecked = AuthorizationManager.granted(packageName, uid)
+        switchWidget.isChecked = appsAdapter.isGranted(uid)
     }
 
     override fun onRecycle() {
@@ -43,7 +43,7 @@ class ApplicationManagementActivity : AppBarActivity() {
         viewModel.packages.observe(this) {
             when (it.status) {
                 Status.SUCCESS -> {
-                    adapter.updateData(it.data)
+                    adapter.updateData(it.data, viewModel.grantedUids)
                 }
                 Status.ERROR -> {
                     finish()
@@ -56,6 +56,11 @@ class ApplicationManagementActivity : AppBarActivity() {
                 }
             }
         }
+        viewModel.grantedCount.observe(this) {
+            if (it.status == Status.SUCCESS && viewModel.packages.value?.status == Status.SUCCESS) {
+                adapter.updateGranted(viewModel.grantedUids)
+            }
+        }
         if (viewModel.packages.value == null) {
             viewModel.load()
         }
@@ -82,6 +87,6 @@ class ApplicationManagementActivity : AppBarActivity() {
 
     override fun onResume() {
         super.onResume()
-        adapter.notifyDataSetChanged()
+        viewModel.loadCount()
     }
 }
@@ -1,6 +1,7 @@
 package moe.shizuku.manager.management;
 
 import android.content.pm.PackageInfo;
+import android.util.SparseBooleanArray;
 
 import java.util.List;
 
@@ -9,6 +10,8 @@ import rikka.recyclerview.ClassCreatorPool;
 
 public class AppsAdapter extends BaseRecyclerViewAdapter<ClassCreatorPool> {
 
+    private SparseBooleanArray granted = new SparseBooleanArray();
+
     public AppsAdapter() {
         super();
 
@@ -27,7 +30,21 @@ public class AppsAdapter extends BaseRecyclerViewAdapter<ClassCreatorPool> {
         return new ClassCreatorPool();
     }
 
-    public void updateData(List<PackageInfo> data) {
+    public boolean isGranted(int uid) {
+        return granted.get(uid, false);
+    }
+
+    public void setGranted(int uid, boolean value) {
+        granted.put(uid, value);
+    }
+
+    public void updateGranted(SparseBooleanArray granted) {
+        this.granted = granted.clone();
+        notifyDataSetChanged();
+    }
+
+    public void updateData(List<PackageInfo> data, SparseBooleanArray granted) {
+        this.granted = granted.clone();
         getItems().clear();
         if (data.isEmpty()) {
             getItems().add(new Object());
@@ -2,6 +2,7 @@ package moe.shizuku.manager.management
 
 import android.content.Context
 import android.content.pm.PackageInfo
+import android.util.SparseBooleanArray
 import androidx.activity.ComponentActivity
 import androidx.annotation.MainThread
 import androidx.fragment.app.Fragment
@@ -16,7 +17,6 @@ import moe.shizuku.manager.authorization.AuthorizationManager
 import rikka.lifecycle.Resource
 import rikka.lifecycle.activitySharedViewModels
 import rikka.lifecycle.sharedViewModels
-import java.util.*
 
 @MainThread
 fun ComponentActivity.appsViewModel() = sharedViewModels { AppsViewModel(this) }
@@ -32,15 +32,20 @@ class AppsViewModel(context: Context) : ViewModel() {
     private val _grantedCount = MutableLiveData<Resource<Int>>()
     val grantedCount = _grantedCount as LiveData<Resource<Int>>
 
+    /**
+     * Granted state of the listed apps keyed by uid, updated before [packages] and [grantedCount]
+     * are posted.
+     */
+    @Volatile
+    var grantedUids = SparseBooleanArray()
+        private set
+
     fun load() {
         viewModelScope.launch(Dispatchers.IO) {
             try {
-                val list: MutableList<PackageInfo> = ArrayList()
-                var count = 0
-                for (pi in AuthorizationManager.getPackages()) {
-                    list.add(pi)
-                    if (AuthorizationManager.granted(pi.packageName, pi.applicationInfo.uid)) count++
-                }
+                val list = AuthorizationManager.getPackages()
+                val (granted, count) = AuthorizationManager.granted(list)
+                grantedUids = granted
                 _packages.postValue(Resource.success(list))
                 _grantedCount.postValue(Resource.success(count))
             } catch (e: CancellationException) {
@@ -55,16 +60,10 @@ class AppsViewModel(context: Context) : ViewModel() {
     fun loadCount() {
         viewModelScope.launch(Dispatchers.IO) {
             try {
-                val list: MutableList<PackageInfo> = ArrayList()
-                val packages: MutableList<String> = ArrayList()
-                for (pi in AuthorizationManager.getPackages()) {
-                    list.add(pi)
-                    if (AuthorizationManager.granted(
-                            pi.packageName,
-                            pi.applicationInfo.uid
-                        )
-                    ) packages.add(pi.packageName)
-                }
+                val list = packages.value?.data ?: AuthorizationManager.getPackages()
+                val (granted, count) = AuthorizationManager.granted(list)
+                grantedUids = granted
+                _grantedCount.postValue(Resource.success(count))
             } catch (e: CancellationException) {
 
             } catch (e: Throwable) {
@@ -0,0 +1,169 @@
+package moe.shizuku.manager.shell;
+
+import android.os.IBinder;
+import android.os.Parcel;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import rikka.shizuku.Shizuku;
+import rikka.shizuku.server.ServerConstants;
+
+/**
+ * {@code rish --apply-policy <file|->}, apply a permission policy to Shizuku in one transaction.
+ * <p>
+ * Each line of the policy is {@code allow|deny <package>[@<user id>]} or
+ * {@code allow|deny uid:<uid>}, empty lines and lines starting with {@code #} are ignored. Each
+ * uid may appear once.
+ * <p>
+ * The server only accepts a policy from root, adb shell or the manager, so this has to be run
+ * from adb shell (or root), not from a terminal app.
+ */
+public class PermissionPolicyCommand {
+
+    public static final String COMMAND = "--apply-policy";
+
+    private static final int FLAG_ALLOWED = 1 << 1;
+    private static final int FLAG_DENIED = 1 << 2;
+
+    private static class Entry {
+
+        private final String line;
+        private final String packageName;
+        private final int uid;
+        private final int userId;
+        private final int value;
+
+        private Entry(String line, String packageName, int uid, int userId, int value) {
+            this.line = line;
+            this.packageName = packageName;
+            this.uid = uid;
+            this.userId = userId;
+            this.value = value;
+        }
+    }
+
+    private static Entry parse(String line) {
+        String[] parts = line.split("\\s+");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Bad line: " + line);
+        }
+
+        int value;
+        if ("allow".equals(parts[0])) {
+            value = FLAG_ALLOWED;
+        } else if ("deny".equals(parts[0])) {
+            value = FLAG_DENIED;
+        } else {
+            throw new IllegalArgumentException("Unknown action " + parts[0] + ": " + line);
+        }
+
+        String target = parts[1];
+        if (target.startsWith("uid:")) {
+            return new Entry(line, null, Integer.parseInt(target.substring(4)), -1, value);
+        }
+
+        int userId = 0;
+        int index = target.indexOf('@');
+        if (index != -1) {
+            userId = Integer.parseInt(target.substring(index + 1));
+            target = target.substring(0, index);
+        }
+        return new Entry(line, target, -1, userId, value);
+    }
+
+    private static List<Entry> read(InputStream in) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            entries.add(parse(line));
+        }
+        return entries;
+    }
+
+    public static int run(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: " + COMMAND + " <file|->");
+            return 1;
+        }
+
+        List<Entry> entries;
+        try (InputStream in = "-".equals(args[1]) ? System.in : new FileInputStream(args[1])) {
+            entries = read(in);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+
+        IBinder binder = Shizuku.getBinder();
+        if (binder == null) {
+            System.err.println("Server is not running");
+            return 1;
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken("moe.shizuku.server.IShizukuService");
+            data.writeInt(entries.size());
+            for (Entry entry : entries) {
+                data.writeString(entry.packageName);
+                data.writeInt(entry.uid);
+                data.writeInt(entry.userId);
+                data.writeInt(entry.value);
+            }
+
+            if (!binder.transact(ServerConstants.BINDER_TRANSACTION_applyPermissionPolicy, data, reply, 0)) {
+                System.err.println("Server does not support applying policy, please upgrade Shizuku");
+                return 1;
+            }
+            try {
+                reply.readException();
+            } catch (SecurityException e) {
+                System.err.println(e.getMessage());
+                System.err.println("Run " + COMMAND + " from adb shell or as root");
+                return 1;
+            }
+
+            int applied = reply.readInt();
+            long elapsed = reply.readLong();
+            int[] status = reply.createIntArray();
+
+            boolean failed = false;
+            for (int i = 0; status != null && i < status.length; i++) {
+                if (status[i] == ServerConstants.POLICY_RESULT_NOT_FOUND) {
+                    System.err.println("Not found: " + entries.get(i).line);
+                    failed = true;
+                } else if (status[i] == ServerConstants.POLICY_RESULT_DUPLICATE) {
+                    System.err.println("Uid already in policy: " + entries.get(i).line);
+                    failed = true;
+                }
+            }
+
+            if (failed) {
+                System.err.println("Policy rejected, nothing was applied (" + elapsed + " ms)");
+                return 1;
+            }
+            System.out.println("Applied policy for " + applied + " uids in " + elapsed + " ms");
+            return 0;
+        } catch (Throwable tr) {
+            tr.printStackTrace(System.err);
+            return 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            reply.recycle();
+            data.recycle();
+        }
+    }
+}
@@ -48,6 +48,9 @@ public class Shell extends Rish {
                 System.err.flush();
                 System.exit(1);
             }
+            if (args.length > 0 && PermissionPolicyCommand.COMMAND.equals(args[0])) {
+                System.exit(PermissionPolicyCommand.run(args));
+            }
             new Shell().start(args);
         });
     }
@@ -2,84 +2,150 @@ package rikka.shizuku.server
 
 import android.os.FileObserver
 import android.util.Log
+import rikka.shizuku.server.ktx.workerHandler
 import java.io.File
-import java.util.*
 
 interface ApkChangedListener {
     fun onApkChanged()
 }
 
-private val observers = Collections.synchronizedMap(HashMap<String, ApkChangedObserver>())
-
+/**
+ * Watches the parent folders of apks. inotify watches inodes, if there are still processes
+ * holding the file, DELETE_SELF will not be triggered, so we watch the parent folder.
+ *
+ * All [FileObserver]s of a process share one inotify fd and one thread, so each folder is only
+ * one watch on it. Listeners are called on the worker thread, once for a burst of events of a
+ * folder (an install may delete and create base.apk several times).
+ */
 object ApkChangedObservers {
 
+    private const val DEBOUNCE_DELAY = 500L
+
+    private val lock = Any()
+
+    /**
+     * Folder to its observer, and listener to the folders it watches, guarded by [lock].
+     */
+    private val observers = HashMap<String, ApkChangedObserver>()
+    private val listenerPaths = HashMap<ApkChangedListener, MutableSet<String>>()
+
     @JvmStatic
     fun start(apkPath: String, listener: ApkChangedListener) {
-        // inotify watchs inode, if the there are still processes holds the file, DELTE_SELF will not be triggered
-        // so we need to watch the parent folder
-
         val path = File(apkPath).parent!!
-        val observer = observers.getOrPut(path) {
-            ApkChangedObserver(path).apply {
-                startWatching()
-            }
+        synchronized(lock) {
+            addLocked(path, listener)
         }
-        observer.addListener(listener)
     }
 
     @JvmStatic
     fun stop(listener: ApkChangedListener) {
-        val pathToRemove = mutableListOf<String>()
-
-        for ((path, observer) in observers) {
-            observer.removeListener(listener)
+        synchronized(lock) {
+            val paths = listenerPaths.remove(listener) ?: return
+            for (path in paths) {
+                removeLocked(path, listener)
+            }
+        }
+    }
 
-            if (!observer.hasListeners()) {
-                pathToRemove.add(path)
+    /**
+     * Make [listener] watch the folder of [apkPath] instead of what it watched, the watch of a
+     * folder is kept as long as it has listeners.
+     */
+    @JvmStatic
+    fun move(listener: ApkChangedListener, apkPath: String) {
+        val path = File(apkPath).parent!!
+        synchronized(lock) {
+            listenerPaths[listener]?.filter { it != path }?.forEach {
+                listenerPaths[listener]!!.remove(it)
+                removeLocked(it, listener)
             }
+            addLocked(path, listener)
+        }
+    }
+
+    private fun addLocked(path: String, listener: ApkChangedListener) {
+        val observer = observers.getOrPut(path) {
+            ApkChangedObserver(path).apply { startWatching() }
+        }
+        if (!observer.armed) {
+            observer.rearm()
         }
+        observer.listeners.add(listener)
+        listenerPaths.getOrPut(listener) { HashSet() }.add(path)
+    }
 
-        for (path in pathToRemove) {
-            observers.remove(path)?.stopWatching()
+    private fun removeLocked(path: String, listener: ApkChangedListener) {
+        val observer = observers[path] ?: return
+        observer.listeners.remove(listener)
+        if (observer.listeners.isEmpty()) {
+            observers.remove(path)
+            workerHandler.removeCallbacks(observer.dispatchRunner)
+            observer.stopWatching()
         }
     }
-}
 
-class ApkChangedObserver(private val path: String) : FileObserver(path, DELETE) {
+    internal fun dispatch(observer: ApkChangedObserver) {
+        val listeners = synchronized(lock) {
+            if (observers[observer.path] !== observer) return
+            observer.listeners.toList()
+        }
 
-    private val listeners = mutableSetOf<ApkChangedListener>()
+        listeners.forEach { it.onApkChanged() }
 
-    fun addListener(listener: ApkChangedListener): Boolean {
-        return listeners.add(listener)
+        synchronized(lock) {
+            // The folder came back (same path reinstalled) and still has listeners
+            if (observers[observer.path] === observer && !observer.armed && File(observer.path).exists()) {
+                observer.rearm()
+            }
+        }
     }
+}
 
-    fun removeListener(listener: ApkChangedListener): Boolean {
-        return listeners.remove(listener)
-    }
+class ApkChangedObserver(val path: String) : FileObserver(path, DELETE) {
 
-    fun hasListeners(): Boolean {
-        return listeners.isNotEmpty()
-    }
+    /**
+     * Guarded by the lock of [ApkChangedObservers].
+     */
+    internal val listeners = HashSet<ApkChangedListener>()
 
-    override fun onEvent(event: Int, path: String?) {
-        Log.d("ShizukuServer", "onEvent: ${eventToString(event)} $path")
+    /**
+     * False once the kernel has dropped the watch (the folder is gone).
+     */
+    @Volatile
+    internal var armed = false
+
+    internal val dispatchRunner = Runnable { ApkChangedObservers.dispatch(this) }
 
-        if ((event and 0x00008000 /* IN_IGNORED */) != 0 || path == null) {
+    override fun onEvent(event: Int, path: String?) {
+        if ((event and 0x00008000 /* IN_IGNORED */) != 0) {
+            armed = false
             return
         }
 
         if (path == "base.apk") {
-            stopWatching()
-            ArrayList(listeners).forEach { it.onApkChanged() }
+            Log.d("ShizukuServer", "onEvent: ${eventToString(event)} ${this.path}/$path")
+            workerHandler.removeCallbacks(dispatchRunner)
+            workerHandler.postDelayed(dispatchRunner, DEBOUNCE_DELAY)
         }
     }
 
+    /**
+     * Watch the folder again on the same fd, keeping the listeners.
+     */
+    internal fun rearm() {
+        super.stopWatching()
+        startWatching()
+        Log.d("ShizukuServer", "rearm $path")
+    }
+
     override fun startWatching() {
         super.startWatching()
+        armed = true
         Log.d("ShizukuServer", "start watching $path")
     }
 
     override fun stopWatching() {
+        armed = false
         super.stopWatching()
         Log.d("ShizukuServer", "stop watching $path")
     }
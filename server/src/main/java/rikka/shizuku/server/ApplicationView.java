@@ -0,0 +1,247 @@
+package rikka.shizuku.server;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rikka.shizuku.server.util.UserHandleCompat;
+
+/**
+ * The application list the manager shows, with a generation for every change so that clients
+ * can fetch it page by page and then only what changed since the generation they have.
+ * <p>
+ * Changes are found by comparing the descriptors of each refresh with the last ones. Generations
+ * are only meaningful together with {@link #epoch}, which is different for every server process.
+ * <p>
+ * The list is only listed again once a package, a user or the config has changed since the last
+ * refresh, or for a client that doesn't know the epoch yet.
+ */
+public class ApplicationView implements PackageChangeMonitor.Listener {
+
+    private static final int MAX_REMOVED = 256;
+
+    private static class Entry {
+
+        private final String packageName;
+        private final int uid;
+        private PackageInfo packageInfo;
+        private byte[] descriptor;
+        private long generation;
+
+        private Entry(String packageName, int uid) {
+            this.packageName = packageName;
+            this.uid = uid;
+        }
+    }
+
+    private final long epoch = new Random().nextLong();
+
+    /**
+     * "uid:packageName" to entry, in the order they were first seen.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Entries removed, oldest first, their generation is when they were removed.
+     */
+    private final LinkedHashMap<String, Entry> removed = new LinkedHashMap<>();
+
+    private long generation;
+
+    /**
+     * Removals at or before this generation are forgotten.
+     */
+    private long removedFloor;
+
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+
+    private static String key(String packageName, int uid) {
+        return uid + ":" + packageName;
+    }
+
+    /**
+     * Write what the manager shows for {@code pi}: (package name, uid, application flags, long
+     * version code, APPLICATION_* flags, source dir, public source dir, split source dirs, label
+     * res, icon res, non-localized label).
+     */
+    private static void writeDescriptor(PackageInfo pi, Parcel dest) {
+        ApplicationInfo ai = pi.applicationInfo;
+        int descriptorFlags = 0;
+        if (ai.metaData != null) {
+            if (ai.metaData.getBoolean("moe.shizuku.client.V3_SUPPORT", false)) {
+                descriptorFlags |= ServerConstants.APPLICATION_V3_SUPPORT;
+            }
+            if (ai.metaData.getBoolean("moe.shizuku.client.V3_REQUIRES_ROOT", false)) {
+                descriptorFlags |= ServerConstants.APPLICATION_V3_REQUIRES_ROOT;
+            }
+        }
+
+        dest.writeString(pi.packageName);
+        dest.writeInt(ai.uid);
+        dest.writeInt(ai.flags);
+        dest.writeLong(Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? pi.getLongVersionCode() : pi.versionCode);
+        dest.writeInt(descriptorFlags);
+        dest.writeString(ai.sourceDir);
+        dest.writeString(ai.publicSourceDir);
+        dest.writeStringArray(ai.splitSourceDirs);
+        dest.writeInt(ai.labelRes);
+        dest.writeInt(ai.icon);
+        dest.writeString(ai.nonLocalizedLabel != null ? ai.nonLocalizedLabel.toString() : null);
+    }
+
+    /**
+     * Write the count and the descriptor of each package in {@code list}.
+     */
+    public static void writeDescriptors(List<PackageInfo> list, Parcel dest) {
+        dest.writeInt(list.size());
+        for (PackageInfo pi : list) {
+            writeDescriptor(pi, dest);
+        }
+    }
+
+    private static byte[] marshallDescriptor(PackageInfo pi) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeDescriptor(pi, parcel);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Called when something the list depends on has changed.
+     */
+    public void invalidate() {
+        dirty.set(true);
+    }
+
+    @Override
+    public void onPackageChanged(String packageName, int uid) {
+        invalidate();
+    }
+
+    @Override
+    public void onUsersChanged() {
+        invalidate();
+    }
+
+    /**
+     * @return if the list has to be refreshed before serving a client that has {@code sinceEpoch},
+     * in which case it's considered refreshed from now on
+     */
+    public boolean needsRefresh(long sinceEpoch) {
+        return dirty.getAndSet(false) || sinceEpoch != epoch;
+    }
+
+    /**
+     * Compare {@code list} (from getApplications for all users) with the last one, every added,
+     * changed or removed package gets the next generation.
+     */
+    public synchronized void refresh(List<PackageInfo> list) {
+        long next = generation + 1;
+        boolean changed = false;
+
+        Set<String> keys = new HashSet<>();
+        for (PackageInfo pi : list) {
+            String key = key(pi.packageName, pi.applicationInfo.uid);
+            keys.add(key);
+
+            byte[] descriptor = marshallDescriptor(pi);
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(pi.packageName, pi.applicationInfo.uid);
+                entries.put(key, entry);
+                removed.remove(key);
+            } else if (Arrays.equals(entry.descriptor, descriptor)) {
+                continue;
+            }
+            entry.packageInfo = pi;
+            entry.descriptor = descriptor;
+            entry.generation = next;
+            changed = true;
+        }
+
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> e = it.next();
+            if (keys.contains(e.getKey())) {
+                continue;
+            }
+            it.remove();
+            Entry entry = e.getValue();
+            entry.packageInfo = null;
+            entry.descriptor = null;
+            entry.generation = next;
+            removed.put(e.getKey(), entry);
+            changed = true;
+        }
+
+        for (Iterator<Entry> it = removed.values().iterator(); removed.size() > MAX_REMOVED && it.hasNext(); ) {
+            removedFloor = Math.max(removedFloor, it.next().generation);
+            it.remove();
+        }
+
+        if (changed) {
+            generation = next;
+        }
+    }
+
+    /**
+     * Write (long epoch, long generation, int full, int total, descriptors of the page, removed
+     * packages as (package name, uid) pairs).
+     * <p>
+     * If {@code sinceEpoch} and {@code sinceGeneration} can't be served as a delta, "full" is 1 and
+     * the page is of the whole list. Removed packages are only written for the first page of a
+     * delta.
+     */
+    public synchronized void write(long sinceEpoch, long sinceGeneration, int userId, int offset, int limit, Parcel reply) {
+        boolean full = sinceEpoch != epoch || sinceGeneration < removedFloor || sinceGeneration > generation;
+
+        List<PackageInfo> changed = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if ((full || entry.generation > sinceGeneration)
+                    && (userId == -1 || UserHandleCompat.getUserId(entry.uid) == userId)) {
+                changed.add(entry.packageInfo);
+            }
+        }
+
+        int from = Math.min(Math.max(offset, 0), changed.size());
+        int to = Math.min(from + Math.max(limit, 0), changed.size());
+
+        reply.writeLong(epoch);
+        reply.writeLong(generation);
+        reply.writeInt(full ? 1 : 0);
+        reply.writeInt(changed.size());
+        writeDescriptors(changed.subList(from, to), reply);
+
+        if (full || offset != 0) {
+            reply.writeInt(0);
+            return;
+        }
+
+        List<Entry> removedSince = new ArrayList<>();
+        for (Entry entry : removed.values()) {
+            if (entry.generation > sinceGeneration
+                    && (userId == -1 || UserHandleCompat.getUserId(entry.uid) == userId)) {
+                removedSince.add(entry);
+            }
+        }
+        reply.writeInt(removedSince.size());
+        for (Entry entry : removedSince) {
+            reply.writeString(entry.packageName);
+            reply.writeInt(entry.uid);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package rikka.shizuku.server;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Remote transactions that run on a bounded pool of our own instead of the caller's binder
+ * thread. The result is sent to a callback binder with a oneway transaction
+ * {@link ServerConstants#ASYNC_CALLBACK_TRANSACTION} of (int call id, int result, then
+ * (int size, reply of the size) or the error message).
+ * <p>
+ * If the callback can't take the reply, for example when it's too large for a oneway
+ * transaction, the error is sent to the callback instead, so the client doesn't wait forever.
+ */
+public class AsyncRemoteTransactions {
+
+    private static final Logger LOGGER = new Logger("AsyncRemoteTransactions");
+
+    private static final int MAX_THREADS = 8;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(ServerConstants.ASYNC_MAX_PENDING));
+
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger callbackFailed = new AtomicInteger();
+    private final AtomicLong totalTime = new AtomicLong();
+
+    public AsyncRemoteTransactions() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Read (callback binder, int call id, target binder, code, flags, int size, data of the size)
+     * from {@code data} and queue the transaction, the caller's permission must have been checked.
+     */
+    public void submit(Parcel data, Parcel reply) {
+        IBinder callback = data.readStrongBinder();
+        int callId = data.readInt();
+        IBinder targetBinder = data.readStrongBinder();
+        int targetCode = data.readInt();
+        int targetFlags = data.readInt();
+        int size = data.readInt();
+
+        if (callback == null || targetBinder == null) {
+            reply.writeException(new NullPointerException("callback or target binder is null"));
+            return;
+        }
+        if (size < 0 || size > data.dataAvail()) {
+            reply.writeException(new IllegalArgumentException("Bad size " + size));
+            return;
+        }
+
+        // Binders in the data are held by the copy until it is recycled
+        Parcel newData = Parcel.obtain();
+        newData.appendFrom(data, data.dataPosition(), size);
+
+        try {
+            executor.execute(() -> run(callback, callId, targetBinder, targetCode, targetFlags, newData));
+        } catch (RejectedExecutionException e) {
+            newData.recycle();
+            rejected.incrementAndGet();
+            reply.writeException(new IllegalStateException("Too many pending transactions, max " + ServerConstants.ASYNC_MAX_PENDING));
+            return;
+        }
+        reply.writeNoException();
+    }
+
+    private void run(IBinder callback, int callId, IBinder targetBinder, int targetCode, int targetFlags, Parcel newData) {
+        long start = SystemClock.elapsedRealtime();
+        Parcel newReply = Parcel.obtain();
+        Parcel result = Parcel.obtain();
+        try {
+            try {
+                targetBinder.transact(targetCode, newData, newReply, targetFlags);
+
+                result.writeInt(callId);
+                result.writeInt(ServerConstants.BATCH_RESULT_OK);
+                result.writeInt(newReply.dataSize());
+                result.appendFrom(newReply, 0, newReply.dataSize());
+                completed.incrementAndGet();
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "transact: call %d, code=%d", callId, targetCode);
+
+                result.setDataSize(0);
+                result.writeInt(callId);
+                result.writeInt(ServerConstants.BATCH_RESULT_ERROR);
+                result.writeString(tr.toString());
+                failed.incrementAndGet();
+            }
+            totalTime.addAndGet(SystemClock.elapsedRealtime() - start);
+
+            try {
+                callback.transact(ServerConstants.ASYNC_CALLBACK_TRANSACTION, result, null, IBinder.FLAG_ONEWAY);
+            } catch (DeadObjectException e) {
+                LOGGER.w("callback: call %d, client died", callId);
+                callbackFailed.incrementAndGet();
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "callback: call %d, reply size=%d", callId, result.dataSize());
+                sendError(callback, callId, "Unable to send the reply of " + result.dataSize() + " bytes: " + tr);
+            }
+        } finally {
+            result.recycle();
+            newReply.recycle();
+            newData.recycle();
+        }
+    }
+
+    private void sendError(IBinder callback, int callId, String message) {
+        Parcel result = Parcel.obtain();
+        try {
+            result.writeInt(callId);
+            result.writeInt(ServerConstants.BATCH_RESULT_ERROR);
+            result.writeString(message);
+            callback.transact(ServerConstants.ASYNC_CALLBACK_TRANSACTION, result, null, IBinder.FLAG_ONEWAY);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "callback: call %d, error", callId);
+            callbackFailed.incrementAndGet();
+        } finally {
+            result.recycle();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        int finished = completed.get() + failed.get();
+        pw.println("AsyncRemoteTransactions:");
+        pw.printf("  completed=%d, failed=%d, rejected=%d, callbackFailed=%d, active=%d, pending=%d, avg=%d ms%n",
+                completed.get(), failed.get(), rejected.get(), callbackFailed.get(),
+                executor.getActiveCount(), executor.getQueue().size(),
+                finished > 0 ? totalTime.get() / finished : 0);
+    }
+}
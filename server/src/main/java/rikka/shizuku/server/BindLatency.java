@@ -0,0 +1,63 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Time from starting a user service to its binder being attached, by how it was started. Only
+ * cold starts (and hosts taken while starting) go through the manager to reach the server.
+ */
+public class BindLatency {
+
+    public static final int COLD = 0;
+    public static final int WARM = 1;
+    public static final int SHARED = 2;
+    public static final int STARTING = 3;
+
+    private static final String[] NAMES = {"cold", "warm", "shared", "starting"};
+
+    private final Map<String, long[]> started = new ArrayMap<>();
+
+    private final int[] counts = new int[NAMES.length];
+    private final long[] totals = new long[NAMES.length];
+    private final long[] maxes = new long[NAMES.length];
+
+    private int cancelled;
+
+    public synchronized void start(String token, int kind) {
+        started.put(token, new long[]{SystemClock.elapsedRealtime(), kind});
+    }
+
+    public synchronized void finish(String token) {
+        long[] start = started.remove(token);
+        if (start == null) {
+            return;
+        }
+        int kind = (int) start[1];
+        long elapsed = SystemClock.elapsedRealtime() - start[0];
+        counts[kind]++;
+        totals[kind] += elapsed;
+        maxes[kind] = Math.max(maxes[kind], elapsed);
+    }
+
+    /**
+     * Called when the service is removed, which may be before it has been attached.
+     */
+    public synchronized void cancel(String token) {
+        if (started.remove(token) != null) {
+            cancelled++;
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("BindLatency:");
+        pw.printf("  starting=%d, cancelled=%d%n", started.size(), cancelled);
+        for (int i = 0; i < NAMES.length; i++) {
+            pw.printf("  %s: count=%d, avg=%d ms, max=%d ms%n",
+                    NAMES[i], counts[i], counts[i] > 0 ? totals[i] / counts[i] : 0, maxes[i]);
+        }
+    }
+}
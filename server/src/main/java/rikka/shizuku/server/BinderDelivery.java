@@ -0,0 +1,286 @@
+package rikka.shizuku.server;
+
+import android.content.IContentProvider;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import moe.shizuku.api.BinderContainer;
+import rikka.hidden.compat.ActivityManagerApis;
+import rikka.hidden.compat.DeviceIdleControllerApis;
+import rikka.shizuku.server.api.IContentProviderUtils;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Sends the server binder to apps through their "sendBinder" provider call.
+ * <p>
+ * Deliveries run on a small pool so that a slow app (the provider call may cold-start it) only
+ * holds up its own delivery. Binder calls can't be cancelled, so each attempt is made on a thread
+ * of its own and the delivery stops waiting for it at the deadline: the target is marked as timed
+ * out and the pool thread moves on, while the call keeps its thread until it returns.
+ */
+public class BinderDelivery {
+
+    private static final Logger LOGGER = new Logger("BinderDelivery");
+
+    private static final int MAX_CONCURRENCY = 4;
+    private static final long DEADLINE = 10 * 1000;
+    private static final long RETRY_DELAY = 500;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_RECENT = 64;
+
+    private enum Result {
+        DELIVERED,
+        FAILED,
+        PROVIDER_DEAD,
+        TIMED_OUT
+    }
+
+    private final Binder binder;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_CONCURRENCY, MAX_CONCURRENCY, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Runs the provider calls, a thread is only kept by a call that hangs.
+     */
+    private final ThreadPoolExecutor callExecutor = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>());
+    private final AtomicInteger hung = new AtomicInteger();
+
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger timedOut = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private final Map<String, String> recent = new LinkedHashMap<String, String>() {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+
+    public BinderDelivery(Binder binder) {
+        this.binder = binder;
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void deliver(String packageName, int userId) {
+        executor.execute(new Target(packageName, userId));
+    }
+
+    public void deliver(String packageName, int userId, long delay) {
+        Target target = new Target(packageName, userId);
+        scheduler.schedule(() -> executor.execute(target), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record that a delivery was not needed because the app has already attached.
+     */
+    public void skip(String packageName, int userId) {
+        skipped.incrementAndGet();
+        putRecent(packageName, userId, "SKIPPED, attached");
+    }
+
+    private void putRecent(String packageName, int userId, String result) {
+        synchronized (recent) {
+            String key = userId + ":" + packageName;
+            recent.remove(key);
+            recent.put(key, result);
+        }
+    }
+
+    private class Target implements Runnable {
+
+        private final String packageName;
+        private final int userId;
+        private long startTime;
+        private int attempts;
+
+        private Target(String packageName, int userId) {
+            this.packageName = packageName;
+            this.userId = userId;
+        }
+
+        @Override
+        public void run() {
+            if (attempts++ == 0) {
+                startTime = SystemClock.elapsedRealtime();
+            }
+
+            Result result = attemptWithDeadline(packageName, userId, DEADLINE - (SystemClock.elapsedRealtime() - startTime));
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+
+            if (result == Result.PROVIDER_DEAD && attempts < MAX_ATTEMPTS && elapsed < DEADLINE) {
+                // For unknown reason, sometimes this could happens
+                // Kill the app and try again could work
+                ActivityManagerApis.forceStopPackageNoThrow(packageName, userId);
+                LOGGER.e("kill %s in user %d and try again", packageName, userId);
+                retries.incrementAndGet();
+                scheduler.schedule(() -> executor.execute(this), RETRY_DELAY << (attempts - 1), TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            if (result == Result.DELIVERED) {
+                delivered.incrementAndGet();
+                if (attempts > 1) {
+                    LOGGER.e("retry works");
+                }
+            } else {
+                if (result == Result.TIMED_OUT) {
+                    timedOut.incrementAndGet();
+                    LOGGER.w("delivery to %d:%s has taken more than %d ms, giving up", userId, packageName, DEADLINE);
+                }
+                failed.incrementAndGet();
+            }
+            totalLatency.addAndGet(elapsed);
+            long max;
+            do {
+                max = maxLatency.get();
+            } while (elapsed > max && !maxLatency.compareAndSet(max, elapsed));
+
+            putRecent(packageName, userId, result + ", " + elapsed + " ms, " + attempts + " attempt(s)");
+        }
+    }
+
+    /**
+     * @return the result of {@link #attempt}, or {@link Result#TIMED_OUT} if it hasn't returned in
+     * {@code timeout} ms, in which case it's left running
+     */
+    private Result attemptWithDeadline(String packageName, int userId, long timeout) {
+        if (timeout <= 0) {
+            return Result.TIMED_OUT;
+        }
+
+        // Set by whichever comes first, the call returning or the caller giving up on it
+        AtomicBoolean done = new AtomicBoolean();
+        Future<Result> future = callExecutor.submit(() -> {
+            try {
+                return attempt(packageName, userId);
+            } finally {
+                if (!done.compareAndSet(false, true)) {
+                    hung.decrementAndGet();
+                    LOGGER.i("call to %d:%s returned after its deadline", userId, packageName);
+                }
+            }
+        });
+
+        try {
+            try {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (done.compareAndSet(false, true)) {
+                    hung.incrementAndGet();
+                    return Result.TIMED_OUT;
+                }
+                // Returned just now
+                return future.get();
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            LOGGER.e(e, "deliver to %d:%s", userId, packageName);
+            return Result.FAILED;
+        }
+    }
+
+    private Result attempt(String packageName, int userId) {
+        try {
+            DeviceIdleControllerApis.addPowerSaveTempWhitelistApp(packageName, 30 * 1000, userId,
+                    316/* PowerExemptionManager#REASON_SHELL */, "shell");
+            LOGGER.v("Add %d:%s to power save temp whitelist for 30s", userId, packageName);
+        } catch (Throwable tr) {
+            LOGGER.e(tr, "Failed to add %d:%s to power save temp whitelist", userId, packageName);
+        }
+
+        String name = packageName + ".shizuku";
+        IContentProvider provider = null;
+
+        /*
+         When we pass IBinder through binder (and really crossed process), the receive side (here is system_server process)
+         will always get a new instance of android.os.BinderProxy.
+
+         In the implementation of getContentProviderExternal and removeContentProviderExternal, received
+         IBinder is used as the key of a HashMap. But hashCode() is not implemented by BinderProxy, so
+         removeContentProviderExternal will never work.
+
+         Luckily, we can pass null. When token is token, count will be used.
+         */
+        IBinder token = null;
+
+        try {
+            provider = ActivityManagerApis.getContentProviderExternal(name, userId, token, name);
+            if (provider == null) {
+                LOGGER.e("provider is null %s %d", name, userId);
+                return Result.FAILED;
+            }
+            if (!provider.asBinder().pingBinder()) {
+                LOGGER.e("provider is dead %s %d", name, userId);
+                return Result.PROVIDER_DEAD;
+            }
+
+            Bundle extra = new Bundle();
+            extra.putParcelable("moe.shizuku.privileged.api.intent.extra.BINDER", new BinderContainer(binder));
+
+            Bundle reply = IContentProviderUtils.callCompat(provider, null, name, "sendBinder", null, extra);
+            if (reply != null) {
+                LOGGER.i("send binder to user app %s in user %d", packageName, userId);
+                return Result.DELIVERED;
+            } else {
+                LOGGER.w("failed to send binder to user app %s in user %d", packageName, userId);
+                return Result.FAILED;
+            }
+        } catch (Throwable tr) {
+            LOGGER.e(tr, "failed send binder to user app %s in user %d", packageName, userId);
+            return Result.FAILED;
+        } finally {
+            if (provider != null) {
+                try {
+                    ActivityManagerApis.removeContentProviderExternal(name, token);
+                } catch (Throwable tr) {
+                    LOGGER.w(tr, "removeContentProviderExternal");
+                }
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        int finishedCount = delivered.get() + failed.get();
+        pw.println("BinderDelivery:");
+        pw.printf("  delivered=%d, failed=%d, timedOut=%d, hung=%d, retries=%d, skipped=%d, pending=%d%n",
+                delivered.get(), failed.get(), timedOut.get(), hung.get(), retries.get(), skipped.get(), executor.getQueue().size() + executor.getActiveCount());
+        pw.printf("  latency: avg=%d ms, max=%d ms%n",
+                finishedCount > 0 ? totalLatency.get() / finishedCount : 0, maxLatency.get());
+
+        List<Map.Entry<String, String>> entries;
+        synchronized (recent) {
+            entries = new ArrayList<>(recent.entrySet());
+        }
+        pw.println("  recent:");
+        for (Map.Entry<String, String> entry : entries) {
+            pw.printf("    %s: %s%n", entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -11,18 +11,20 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.RemoteException;
 import android.text.TextUtils;
+import android.util.SparseIntArray;
 
 import androidx.annotation.RequiresApi;
 
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kotlin.collections.ArraysKt;
 import rikka.hidden.compat.ActivityManagerApis;
-import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
 import rikka.hidden.compat.adapter.ProcessObserverAdapter;
 import rikka.hidden.compat.adapter.UidObserverAdapter;
+import rikka.shizuku.server.ktx.HandlerKt;
 import rikka.shizuku.server.util.Logger;
 
 public class BinderSender {
@@ -34,56 +36,62 @@ public class BinderSender {
 
     private static ShizukuService sShizukuService;
 
-    private static class ProcessObserver extends ProcessObserverAdapter {
+    /**
+     * Entries are dropped on process/uid death, the expiry only covers missed death callbacks.
+     */
+    private static final long OBSERVED_TTL = 30 * 60 * 1000;
+
+    private static final long COALESCE_DELAY = 100;
+
+    private static final ExpiringIntSet PIDS = new ExpiringIntSet(OBSERVED_TTL);
+    private static final ExpiringIntSet UIDS = new ExpiringIntSet(OBSERVED_TTL);
 
-        private static final List<Integer> PID_LIST = new ArrayList<>();
+    /**
+     * uid to the last pid seen for it (or -1 if only the uid observer reported it), waiting to be
+     * handled on the worker thread.
+     */
+    private static final SparseIntArray PENDING = new SparseIntArray();
+    private static final Runnable FLUSH = BinderSender::flush;
+
+    private static final AtomicInteger sEvents = new AtomicInteger();
+    private static final AtomicInteger sDecisions = new AtomicInteger();
+
+    private static class ProcessObserver extends ProcessObserverAdapter {
 
         @Override
         public void onForegroundActivitiesChanged(int pid, int uid, boolean foregroundActivities) throws RemoteException {
             LOGGER.d("onForegroundActivitiesChanged: pid=%d, uid=%d, foregroundActivities=%s", pid, uid, foregroundActivities ? "true" : "false");
 
-            synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid) || !foregroundActivities) {
-                    return;
-                }
-                PID_LIST.add(pid);
+            if (!foregroundActivities || !PIDS.add(pid)) {
+                return;
             }
 
-            sendBinder(uid, pid);
+            enqueue(uid, pid);
         }
 
         @Override
         public void onProcessDied(int pid, int uid) {
             LOGGER.d("onProcessDied: pid=%d, uid=%d", pid, uid);
 
-            synchronized (PID_LIST) {
-                int index = PID_LIST.indexOf(pid);
-                if (index != -1) {
-                    PID_LIST.remove(index);
-                }
-            }
+            PIDS.remove(pid);
+            sShizukuService.getCallerPermissionCache().invalidatePid(pid);
         }
 
         @Override
         public void onProcessStateChanged(int pid, int uid, int procState) throws RemoteException {
             LOGGER.d("onProcessStateChanged: pid=%d, uid=%d, procState=%d", pid, uid, procState);
 
-            synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid)) {
-                    return;
-                }
-                PID_LIST.add(pid);
+            if (!PIDS.add(pid)) {
+                return;
             }
 
-            sendBinder(uid, pid);
+            enqueue(uid, pid);
         }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     private static class UidObserver extends UidObserverAdapter {
 
-        private static final List<Integer> UID_LIST = new ArrayList<>();
-
         @Override
         public void onUidActive(int uid) throws RemoteException {
             LOGGER.d("onUidCachedChanged: uid=%d", uid);
@@ -114,32 +122,68 @@ public class BinderSender {
             uidGone(uid);
         }
 
-        private void uidStarts(int uid) throws RemoteException {
-            synchronized (UID_LIST) {
-                if (UID_LIST.contains(uid)) {
-                    LOGGER.v("Uid %d already starts", uid);
-                    return;
-                }
-                UID_LIST.add(uid);
-                LOGGER.v("Uid %d starts", uid);
+        private void uidStarts(int uid) {
+            if (!UIDS.add(uid)) {
+                LOGGER.v("Uid %d already starts", uid);
+                return;
             }
+            LOGGER.v("Uid %d starts", uid);
 
-            sendBinder(uid, -1);
+            enqueue(uid, -1);
         }
 
         private void uidGone(int uid) {
-            synchronized (UID_LIST) {
-                int index = UID_LIST.indexOf(uid);
-                if (index != -1) {
-                    UID_LIST.remove(index);
-                    LOGGER.v("Uid %d dead", uid);
+            if (UIDS.remove(uid)) {
+                LOGGER.v("Uid %d dead", uid);
+            }
+        }
+    }
+
+    /**
+     * Called on observer (binder) threads. Events of the same uid within {@link #COALESCE_DELAY}
+     * result in one {@link #sendBinder(int, int)} on the worker thread.
+     */
+    private static void enqueue(int uid, int pid) {
+        sEvents.incrementAndGet();
+
+        synchronized (PENDING) {
+            int index = PENDING.indexOfKey(uid);
+            if (index >= 0) {
+                if (pid != -1) {
+                    PENDING.setValueAt(index, pid);
                 }
+                return;
+            }
+
+            PENDING.put(uid, pid);
+            if (PENDING.size() == 1) {
+                HandlerKt.getWorkerHandler().postDelayed(FLUSH, COALESCE_DELAY);
             }
         }
     }
 
-    private static void sendBinder(int uid, int pid) throws RemoteException {
-        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
+    private static void flush() {
+        SparseIntArray pending;
+        synchronized (PENDING) {
+            pending = PENDING.clone();
+            PENDING.clear();
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            int uid = pending.keyAt(i);
+            int pid = pending.valueAt(i);
+            sDecisions.incrementAndGet();
+            try {
+                sendBinder(uid, pid);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "sendBinder: uid=%d, pid=%d", uid, pid);
+            }
+        }
+    }
+
+    private static void sendBinder(int uid, int pid) {
+        PackageInfoCache packageInfoCache = sShizukuService.getPackageInfoCache();
+        List<String> packages = packageInfoCache.getPackagesForUid(uid);
         if (packages.isEmpty())
             return;
 
@@ -147,7 +191,7 @@ public class BinderSender {
 
         int userId = uid / 100000;
         for (String packageName : packages) {
-            PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+            PackageInfo pi = packageInfoCache.getPackageInfo(packageName, userId);
             if (pi == null || pi.requestedPermissions == null)
                 continue;
 
@@ -159,16 +203,22 @@ public class BinderSender {
                     granted = ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
 
                 if (granted) {
-                    ShizukuService.sendBinderToManger(sShizukuService, userId);
+                    sShizukuService.sendBinderToUserApp(ServerConstants.MANAGER_APPLICATION_ID, uid, pid);
                     return;
                 }
             } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                ShizukuService.sendBinderToUserApp(sShizukuService, packageName, userId);
+                sShizukuService.sendBinderToUserApp(packageName, uid, pid);
                 return;
             }
         }
     }
 
+    public static void dump(PrintWriter pw) {
+        pw.println("BinderSender:");
+        pw.printf("  events=%d, decisions=%d, pids=%d, uids=%d%n",
+                sEvents.get(), sDecisions.get(), PIDS.size(), UIDS.size());
+    }
+
     public static void register(ShizukuService shizukuService) {
         sShizukuService = shizukuService;
 
@@ -0,0 +1,120 @@
+package rikka.shizuku.server;
+
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+
+import java.io.PrintWriter;
+
+import rikka.hidden.compat.ActivityManagerApis;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Short-lived cache of {@link ActivityManagerApis#checkPermission} results of
+ * {@link ServerConstants#PERMISSION} for callers that have not attached.
+ * <p>
+ * Entries of a process are dropped when it dies and entries of a uid are dropped when its
+ * permission is changed from here. The ttl bounds how long a change made elsewhere (e.g. from
+ * Settings) can go unnoticed.
+ */
+public class CallerPermissionCache {
+
+    private static final Logger LOGGER = new Logger("CallerPermissionCache");
+
+    private static final long TTL = 5 * 1000;
+    private static final int MAX_SIZE = 256;
+
+    private static class Decision {
+
+        private final int uid;
+        private final int result;
+        private final long expiry;
+
+        private Decision(int uid, int result, long expiry) {
+            this.uid = uid;
+            this.result = result;
+            this.expiry = expiry;
+        }
+    }
+
+    private final LongSparseArray<Decision> decisions = new LongSparseArray<>();
+
+    /**
+     * Changed on every invalidation, a result fetched across an invalidation is not cached.
+     */
+    private int generation;
+
+    private int hits;
+    private int misses;
+
+    private static long key(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xffffffffL);
+    }
+
+    public int checkPermission(int uid, int pid) {
+        long key = key(uid, pid);
+        int startGeneration;
+        synchronized (this) {
+            Decision decision = decisions.get(key);
+            if (decision != null && decision.expiry > SystemClock.elapsedRealtime()) {
+                hits++;
+                return decision.result;
+            }
+            misses++;
+            startGeneration = generation;
+        }
+
+        int result;
+        try {
+            result = ActivityManagerApis.checkPermission(ServerConstants.PERMISSION, pid, uid);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "checkPermission");
+            return PackageManager.PERMISSION_DENIED;
+        }
+
+        synchronized (this) {
+            if (startGeneration == generation) {
+                long now = SystemClock.elapsedRealtime();
+                if (decisions.size() >= MAX_SIZE) {
+                    prune(now);
+                }
+                decisions.put(key, new Decision(uid, result, now + TTL));
+            }
+        }
+        return result;
+    }
+
+    private void prune(long now) {
+        for (int i = decisions.size() - 1; i >= 0; i--) {
+            if (decisions.valueAt(i).expiry <= now) {
+                decisions.removeAt(i);
+            }
+        }
+        if (decisions.size() >= MAX_SIZE) {
+            decisions.clear();
+        }
+    }
+
+    public synchronized void invalidatePid(int pid) {
+        generation++;
+        for (int i = decisions.size() - 1; i >= 0; i--) {
+            if ((int) decisions.keyAt(i) == pid) {
+                decisions.removeAt(i);
+            }
+        }
+    }
+
+    public synchronized void invalidateUid(int uid) {
+        generation++;
+        for (int i = decisions.size() - 1; i >= 0; i--) {
+            if (decisions.valueAt(i).uid == uid) {
+                decisions.removeAt(i);
+            }
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("CallerPermissionCache:");
+        pw.printf("  size=%d/%d, hits=%d, misses=%d%n", decisions.size(), MAX_SIZE, hits, misses);
+    }
+}
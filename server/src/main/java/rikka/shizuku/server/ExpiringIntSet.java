@@ -0,0 +1,56 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+import android.util.SparseLongArray;
+
+/**
+ * Set of ints where each entry expires some time after it was added, so an entry whose removal
+ * was missed (e.g. a lost death callback and a reused pid) doesn't stay forever.
+ */
+public class ExpiringIntSet {
+
+    private final SparseLongArray expiry = new SparseLongArray();
+    private final long ttl;
+
+    public ExpiringIntSet(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return true if the value was not in the set (or had expired)
+     */
+    public synchronized boolean add(int value) {
+        long now = SystemClock.elapsedRealtime();
+        long time = expiry.get(value, 0);
+        if (time > now) {
+            return false;
+        }
+        if (time != 0 && expiry.size() > 64) {
+            // One expired, likely more
+            prune(now);
+        }
+        expiry.put(value, now + ttl);
+        return true;
+    }
+
+    public synchronized boolean remove(int value) {
+        int index = expiry.indexOfKey(value);
+        if (index < 0) {
+            return false;
+        }
+        expiry.removeAt(index);
+        return true;
+    }
+
+    public synchronized int size() {
+        return expiry.size();
+    }
+
+    private void prune(long now) {
+        for (int i = expiry.size() - 1; i >= 0; i--) {
+            if (expiry.valueAt(i) <= now) {
+                expiry.removeAt(i);
+            }
+        }
+    }
+}
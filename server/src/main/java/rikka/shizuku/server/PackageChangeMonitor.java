@@ -0,0 +1,92 @@
+package rikka.shizuku.server;
+
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import rikka.shizuku.server.api.IActivityManagerUtils;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Package added, removed and replaced broadcasts of every user, and users added or removed.
+ * Listeners are called on a binder thread.
+ */
+public class PackageChangeMonitor {
+
+    private static final Logger LOGGER = new Logger("PackageChangeMonitor");
+
+    private static final int USER_ALL = -1;
+
+    private static final String ACTION_USER_ADDED = "android.intent.action.USER_ADDED";
+    private static final String ACTION_USER_REMOVED = "android.intent.action.USER_REMOVED";
+
+    public interface Listener {
+
+        /**
+         * @param uid uid of the package in the user it changed in, or -1 if unknown
+         */
+        void onPackageChanged(String packageName, int uid);
+
+        void onUsersChanged();
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final IIntentReceiver receiver = new IIntentReceiver.Stub() {
+
+        @Override
+        public void performReceive(Intent intent, int resultCode, String data, Bundle extras, boolean ordered, boolean sticky, int sendingUser) {
+            dispatch(intent);
+        }
+    };
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void register() {
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+
+        IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(ACTION_USER_ADDED);
+        userFilter.addAction(ACTION_USER_REMOVED);
+
+        try {
+            IActivityManagerUtils.registerReceiverCompat(receiver, packageFilter, USER_ALL);
+            IActivityManagerUtils.registerReceiverCompat(receiver, userFilter, USER_ALL);
+        } catch (Throwable tr) {
+            LOGGER.e(tr, "unable to register package receiver, only apk changes will be noticed");
+        }
+    }
+
+    private void dispatch(Intent intent) {
+        String action = intent.getAction();
+        if (ACTION_USER_ADDED.equals(action) || ACTION_USER_REMOVED.equals(action)) {
+            LOGGER.v("%s", action);
+            for (Listener listener : listeners) {
+                listener.onUsersChanged();
+            }
+            return;
+        }
+
+        Uri uri = intent.getData();
+        String packageName = uri != null ? uri.getSchemeSpecificPart() : null;
+        if (packageName == null) {
+            return;
+        }
+        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+        LOGGER.v("%s %s %d", action, packageName, uid);
+        for (Listener listener : listeners) {
+            listener.onPackageChanged(packageName, uid);
+        }
+    }
+}
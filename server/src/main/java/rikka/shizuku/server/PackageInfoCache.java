@@ -0,0 +1,231 @@
+package rikka.shizuku.server;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Cache of {@link PackageManagerApis#getPackageInfoNoThrow} (with {@link PackageManager#GET_PERMISSIONS})
+ * and {@link PackageManagerApis#getPackagesForUidNoThrow} results.
+ * <p>
+ * Entries are dropped on package added, removed and replaced broadcasts (by package and by uid,
+ * so a package joining a shared uid is seen), and everything is dropped when a user is added or
+ * removed, see {@link PackageChangeMonitor}. Only packages with an attached client also watch
+ * their apk with {@link ApkChangedObservers} (see {@link #watch}), in case the broadcasts can't be
+ * received, so the number of inotify watches follows the clients rather than the cache size.
+ * Negative results are never cached, so newly installed packages are always seen.
+ */
+public class PackageInfoCache implements PackageChangeMonitor.Listener {
+
+    private static final Logger LOGGER = new Logger("PackageInfoCache");
+
+    private static final int MAX_PACKAGES = 512;
+    private static final int MAX_UIDS = 512;
+
+    private class ApkWatch implements ApkChangedListener {
+
+        private final String packageName;
+        private int clients;
+
+        private ApkWatch(String packageName) {
+            this.packageName = packageName;
+        }
+
+        @Override
+        public void onApkChanged() {
+            LOGGER.v("apk of %s changed", packageName);
+            if (invalidatePackage(packageName)) {
+                notifyPackageChanged();
+            }
+        }
+    }
+
+    private final LruCache<String, PackageInfo> packages = new LruCache<>(MAX_PACKAGES);
+
+    private final LruCache<Integer, List<String>> uids = new LruCache<>(MAX_UIDS);
+
+    /**
+     * Package and user to the watch of its apk, kept while clients from it are alive, guarded by
+     * itself.
+     */
+    private final Map<String, ApkWatch> watches = new ArrayMap<>();
+
+    @Nullable
+    private volatile Runnable onPackageChangedListener;
+
+    /**
+     * Called (on the worker thread or a binder thread) when a cached package changes or everything
+     * is invalidated.
+     */
+    public void setOnPackageChangedListener(@Nullable Runnable listener) {
+        onPackageChangedListener = listener;
+    }
+
+    private void notifyPackageChanged() {
+        Runnable listener = onPackageChangedListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private static String key(String packageName, int userId) {
+        return packageName + ":" + userId;
+    }
+
+    /**
+     * Same as {@code getPackageInfoNoThrow(packageName, GET_PERMISSIONS, userId)}.
+     */
+    @Nullable
+    public PackageInfo getPackageInfo(String packageName, int userId) {
+        String key = key(packageName, userId);
+        PackageInfo pi = packages.get(key);
+        if (pi != null) {
+            return pi;
+        }
+
+        pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+        if (pi == null || pi.applicationInfo == null) {
+            return pi;
+        }
+
+        packages.put(key, pi);
+        return pi;
+    }
+
+    /**
+     * Watch the apk of {@code packageName} until {@code client} dies. Clients from the same
+     * package share one watch.
+     */
+    public void watch(String packageName, int userId, IBinder client) {
+        PackageInfo pi = getPackageInfo(packageName, userId);
+        if (pi == null || pi.applicationInfo == null || pi.applicationInfo.sourceDir == null) {
+            return;
+        }
+
+        String key = key(packageName, userId);
+        ApkWatch watch;
+        boolean start = false;
+        synchronized (watches) {
+            watch = watches.get(key);
+            if (watch == null) {
+                watch = new ApkWatch(packageName);
+                watches.put(key, watch);
+                start = true;
+            }
+            watch.clients++;
+        }
+        if (start) {
+            ApkChangedObservers.start(pi.applicationInfo.sourceDir, watch);
+        }
+
+        try {
+            client.linkToDeath(() -> unwatch(key), 0);
+        } catch (RemoteException e) {
+            unwatch(key);
+        }
+    }
+
+    private void unwatch(String key) {
+        ApkWatch watch;
+        synchronized (watches) {
+            watch = watches.get(key);
+            if (watch == null || --watch.clients > 0) {
+                return;
+            }
+            watches.remove(key);
+        }
+        ApkChangedObservers.stop(watch);
+    }
+
+    /**
+     * Same as {@code getPackagesForUidNoThrow(uid)}.
+     */
+    @NonNull
+    public List<String> getPackagesForUid(int uid) {
+        List<String> result = uids.get(uid);
+        if (result != null) {
+            return result;
+        }
+
+        result = PackageManagerApis.getPackagesForUidNoThrow(uid);
+        if (result.isEmpty()) {
+            return result;
+        }
+
+        result = Collections.unmodifiableList(result);
+        uids.put(uid, result);
+        return result;
+    }
+
+    @Override
+    public void onPackageChanged(String packageName, int uid) {
+        boolean changed = uid != -1 && uids.remove(uid) != null;
+        changed |= invalidatePackage(packageName);
+        if (changed) {
+            LOGGER.v("package %s (uid %d) changed", packageName, uid);
+            notifyPackageChanged();
+        }
+    }
+
+    @Override
+    public void onUsersChanged() {
+        LOGGER.v("users changed");
+        invalidateAll();
+    }
+
+    /**
+     * @return if anything was dropped
+     */
+    public boolean invalidatePackage(String packageName) {
+        boolean changed = false;
+        String prefix = packageName + ":";
+        for (String key : packages.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                changed |= packages.remove(key) != null;
+            }
+        }
+        changed |= invalidateUids(packageName);
+        return changed;
+    }
+
+    private boolean invalidateUids(String packageName) {
+        boolean changed = false;
+        for (Map.Entry<Integer, List<String>> entry : uids.snapshot().entrySet()) {
+            if (entry.getValue().contains(packageName)) {
+                changed |= uids.remove(entry.getKey()) != null;
+            }
+        }
+        return changed;
+    }
+
+    public void invalidateAll() {
+        packages.evictAll();
+        uids.evictAll();
+        notifyPackageChanged();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("PackageInfoCache:");
+        pw.printf("  packages: size=%d/%d, hits=%d, misses=%d, evictions=%d%n",
+                packages.size(), packages.maxSize(), packages.hitCount(), packages.missCount(), packages.evictionCount());
+        pw.printf("  uids: size=%d/%d, hits=%d, misses=%d, evictions=%d%n",
+                uids.size(), uids.maxSize(), uids.hitCount(), uids.missCount(), uids.evictionCount());
+        synchronized (watches) {
+            pw.printf("  watched apks: %d%n", watches.size());
+        }
+    }
+}
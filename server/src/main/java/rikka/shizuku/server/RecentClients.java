@@ -0,0 +1,114 @@
+package rikka.shizuku.server;
+
+import android.util.AtomicFile;
+import android.util.Pair;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Packages that attached most recently, kept across server restarts so that they get the binder
+ * before other clients.
+ */
+public class RecentClients {
+
+    private static final Logger LOGGER = new Logger("RecentClients");
+
+    private static final int MAX_SIZE = 32;
+    private static final long WRITE_DELAY = 5 * 1000;
+
+    private final AtomicFile file;
+
+    /**
+     * "userId:packageName" to (packageName, userId), least recent first.
+     */
+    private final LinkedHashMap<String, Pair<String, Integer>> clients = new LinkedHashMap<String, Pair<String, Integer>>() {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pair<String, Integer>> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private final Runnable writeRunner = this::write;
+
+    public RecentClients(File file) {
+        this.file = new AtomicFile(file);
+        read();
+    }
+
+    private synchronized void read() {
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int userId = in.readInt();
+                String packageName = in.readUTF();
+                clients.put(userId + ":" + packageName, new Pair<>(packageName, userId));
+            }
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            LOGGER.w(e, "read %s", file.getBaseFile());
+        }
+    }
+
+    private void write() {
+        List<Pair<String, Integer>> list;
+        synchronized (this) {
+            list = new ArrayList<>(clients.values());
+        }
+
+        FileOutputStream stream;
+        try {
+            stream = file.startWrite();
+        } catch (IOException e) {
+            LOGGER.w("failed to write state: " + e);
+            return;
+        }
+
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(list.size());
+            for (Pair<String, Integer> client : list) {
+                out.writeInt(client.second);
+                out.writeUTF(client.first);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "can't save %s, restoring backup.", file.getBaseFile());
+            file.failWrite(stream);
+        }
+    }
+
+    public void add(String packageName, int userId) {
+        String key = userId + ":" + packageName;
+        synchronized (this) {
+            clients.remove(key);
+            clients.put(key, new Pair<>(packageName, userId));
+        }
+
+        HandlerKt.getWorkerHandler().removeCallbacks(writeRunner);
+        HandlerKt.getWorkerHandler().postDelayed(writeRunner, WRITE_DELAY);
+    }
+
+    /**
+     * @return (packageName, userId) of recent clients, most recent first
+     */
+    public synchronized List<Pair<String, Integer>> get() {
+        List<Pair<String, Integer>> list = new ArrayList<>(clients.values());
+        Collections.reverse(list);
+        return list;
+    }
+}
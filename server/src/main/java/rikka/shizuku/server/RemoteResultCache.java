@@ -0,0 +1,269 @@
+package rikka.shizuku.server;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Replies of remote transactions that the client marked as cacheable (read-only), keyed by
+ * (target binder, target descriptor, code, request bytes, calling user).
+ * <p>
+ * Only requests and replies without binders or file descriptors can be cached, and only replies
+ * that start with a "no exception" header. Replies of a target are dropped when it dies, and
+ * everything is dropped when a package or a user is added, removed or replaced.
+ */
+public class RemoteResultCache implements PackageChangeMonitor.Listener {
+
+    private static final Logger LOGGER = new Logger("RemoteResultCache");
+
+    private static final long TTL = 10 * 1000;
+    private static final int MAX_BYTES = 1024 * 1024;
+    private static final int MAX_ENTRY_BYTES = 64 * 1024;
+
+    private static class Key {
+
+        /**
+         * Held weakly so that the cache doesn't keep remote objects alive. Proxies of the same
+         * remote object are the same instance while it is referenced.
+         */
+        private final WeakReference<IBinder> target;
+        private final String descriptor;
+        private final int code;
+        private final int userId;
+        private final byte[] request;
+        private final int hashCode;
+
+        private Key(IBinder target, String descriptor, int code, int userId, byte[] request) {
+            this.target = new WeakReference<>(target);
+            this.descriptor = descriptor;
+            this.code = code;
+            this.userId = userId;
+            this.request = request;
+            this.hashCode = 31 * (31 * (31 * (31 * System.identityHashCode(target) + descriptor.hashCode()) + code) + userId) + Arrays.hashCode(request);
+        }
+
+        private boolean isOf(IBinder binder) {
+            IBinder referent = target.get();
+            return referent == null || referent == binder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            IBinder referent = target.get();
+            return code == key.code && userId == key.userId && hashCode == key.hashCode
+                    && referent != null && referent == key.target.get()
+                    && descriptor.equals(key.descriptor) && Arrays.equals(request, key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class Entry {
+
+        private final byte[] reply;
+        private final long expiry;
+
+        private Entry(byte[] reply, long expiry) {
+            this.reply = reply;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Holds its target weakly: recipients are the values of {@link #targets}, a strong reference
+     * from one would keep its key from ever being collected.
+     */
+    private class TargetDeathRecipient implements IBinder.DeathRecipient {
+
+        private final WeakReference<IBinder> target;
+
+        private TargetDeathRecipient(IBinder target) {
+            this.target = new WeakReference<>(target);
+        }
+
+        @Override
+        public void binderDied() {
+            // If the proxy is already gone, this only drops keys of collected targets
+            invalidate(target.get());
+        }
+    }
+
+    private final LruCache<Key, Entry> cache = new LruCache<Key, Entry>(MAX_BYTES) {
+
+        @Override
+        protected int sizeOf(Key key, Entry value) {
+            return key.request.length + value.reply.length;
+        }
+    };
+
+    /**
+     * Targets with replies cached, to their death recipients. The binder only holds a recipient
+     * weakly, so it is kept here for as long as the target lives. Guarded by this.
+     */
+    private final Map<IBinder, IBinder.DeathRecipient> targets = new WeakHashMap<>();
+
+    private int hits;
+    private int misses;
+    private int uncacheable;
+
+    @Nullable
+    private static byte[] marshall(Parcel parcel, int offset, int length) {
+        if (parcel.hasFileDescriptors()) {
+            return null;
+        }
+        Parcel copy = Parcel.obtain();
+        try {
+            copy.appendFrom(parcel, offset, length);
+            // Throws if there are binders
+            return copy.marshall();
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            copy.recycle();
+        }
+    }
+
+    /**
+     * Run the transaction, or write the cached reply of an identical one.
+     *
+     * @param data   transaction data, {@code size} bytes from the current position
+     * @param userId user of the caller
+     */
+    public void transact(IBinder targetBinder, int targetCode, int targetFlags, Parcel data, int size,
+                         Parcel reply, int userId) throws RemoteException {
+        int position = data.dataPosition();
+        Key key = null;
+        if ((targetFlags & IBinder.FLAG_ONEWAY) == 0) {
+            String descriptor = targetBinder.getInterfaceDescriptor();
+            byte[] request = descriptor != null ? marshall(data, position, size) : null;
+            if (request != null && request.length <= MAX_ENTRY_BYTES && watch(targetBinder)) {
+                key = new Key(targetBinder, descriptor, targetCode, userId, request);
+            }
+        }
+
+        if (key != null) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.expiry <= SystemClock.elapsedRealtime()) {
+                cache.remove(key);
+                entry = null;
+            }
+            synchronized (this) {
+                if (entry != null) {
+                    hits++;
+                } else {
+                    misses++;
+                }
+            }
+            if (entry != null) {
+                Parcel cached = Parcel.obtain();
+                try {
+                    cached.unmarshall(entry.reply, 0, entry.reply.length);
+                    reply.appendFrom(cached, 0, entry.reply.length);
+                } finally {
+                    cached.recycle();
+                }
+                return;
+            }
+        } else {
+            synchronized (this) {
+                uncacheable++;
+            }
+        }
+
+        Parcel newData = Parcel.obtain();
+        Parcel newReply = Parcel.obtain();
+        try {
+            newData.appendFrom(data, position, size);
+            targetBinder.transact(targetCode, newData, newReply, targetFlags);
+
+            if (key != null && newReply.dataSize() >= 4 && newReply.readInt() == 0) {
+                byte[] bytes = marshall(newReply, 0, newReply.dataSize());
+                if (bytes != null && bytes.length <= MAX_ENTRY_BYTES) {
+                    cache.put(key, new Entry(bytes, SystemClock.elapsedRealtime() + TTL));
+                }
+            }
+            reply.appendFrom(newReply, 0, newReply.dataSize());
+        } finally {
+            newReply.recycle();
+            newData.recycle();
+        }
+    }
+
+    /**
+     * @return if replies of {@code target} can be cached, they are dropped when it dies
+     */
+    private synchronized boolean watch(IBinder target) {
+        if (targets.containsKey(target)) {
+            return true;
+        }
+
+        IBinder.DeathRecipient recipient = new TargetDeathRecipient(target);
+        try {
+            target.linkToDeath(recipient, 0);
+        } catch (RemoteException e) {
+            return false;
+        }
+        targets.put(target, recipient);
+        return true;
+    }
+
+    private void invalidate(@Nullable IBinder target) {
+        if (target != null) {
+            synchronized (this) {
+                targets.remove(target);
+            }
+        }
+        for (Key key : cache.snapshot().keySet()) {
+            if (key.isOf(target)) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public void onPackageChanged(String packageName, int uid) {
+        invalidateAll();
+    }
+
+    @Override
+    public void onUsersChanged() {
+        invalidateAll();
+    }
+
+    public void invalidateAll() {
+        if (cache.size() > 0) {
+            LOGGER.v("invalidate all");
+        }
+        cache.evictAll();
+    }
+
+    public void dump(PrintWriter pw) {
+        int hits, misses, uncacheable;
+        synchronized (this) {
+            hits = this.hits;
+            misses = this.misses;
+            uncacheable = this.uncacheable;
+        }
+        pw.println("RemoteResultCache:");
+        pw.printf("  size=%d/%d bytes, hits=%d, misses=%d, evictions=%d, uncacheable=%d%n",
+                cache.size(), cache.maxSize(), hits, misses, cache.evictionCount(), uncacheable);
+    }
+}
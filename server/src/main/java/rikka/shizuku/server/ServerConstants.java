@@ -9,4 +9,31 @@ public class ServerConstants {
     public static final String REQUEST_PERMISSION_ACTION = MANAGER_APPLICATION_ID + ".intent.action.REQUEST_PERMISSION";
 
     public static final int BINDER_TRANSACTION_getApplications = 10001;
+    public static final int BINDER_TRANSACTION_getFlagsForUids = 10002;
+    public static final int BINDER_TRANSACTION_applyPermissionPolicy = 10003;
+    public static final int BINDER_TRANSACTION_transactRemoteBatch = 10004;
+    public static final int BINDER_TRANSACTION_transactRemoteAsync = 10005;
+    public static final int BINDER_TRANSACTION_transactRemoteCached = 10006;
+    // 10007 was getApplicationsShared, superseded by getApplicationDescriptors and syncApplications
+    public static final int BINDER_TRANSACTION_getApplicationDescriptors = 10008;
+    public static final int BINDER_TRANSACTION_syncApplications = 10009;
+
+    public static final int POLICY_MAX_ENTRIES = 4096;
+    public static final int POLICY_RESULT_OK = 0;
+    public static final int POLICY_RESULT_NOT_FOUND = 1;
+    public static final int POLICY_RESULT_DUPLICATE = 2;
+
+    public static final int APPLICATION_V3_SUPPORT = 1;
+    public static final int APPLICATION_V3_REQUIRES_ROOT = 1 << 1;
+
+    public static final int SYNC_MAX_PAGE_SIZE = 256;
+
+    public static final int BATCH_MAX_ENTRIES = 256;
+    public static final int BATCH_MAX_REPLY_SIZE = 256 * 1024;
+    public static final int BATCH_RESULT_OK = 0;
+    public static final int BATCH_RESULT_ERROR = 1;
+    public static final int BATCH_RESULT_SKIPPED = 2;
+
+    public static final int ASYNC_MAX_PENDING = 128;
+    public static final int ASYNC_CALLBACK_TRANSACTION = 1;
 }
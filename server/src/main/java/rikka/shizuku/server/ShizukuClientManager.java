@@ -5,6 +5,21 @@ public class ShizukuClientManager extends ClientManager<ShizukuConfigManager> {
     public ShizukuClientManager(ShizukuConfigManager configManager) {
         super(configManager);
     }
-}
-
 
+    /**
+     * Whether {@code packageName} has attached from {@code uid} and its application binder is still
+     * alive. If {@code pid} is -1, any process of the uid counts.
+     */
+    public boolean isAttached(String packageName, int uid, int pid) {
+        for (ClientRecord record : findClients(uid)) {
+            if (pid != -1 && record.pid != pid) {
+                continue;
+            }
+            if (packageName.equals(record.packageName)
+                    && record.client != null && record.client.asBinder().isBinderAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -5,7 +5,9 @@ import androidx.annotation.NonNull;
 import com.google.gson.annotations.SerializedName;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ShizukuConfig {
 
@@ -23,15 +25,19 @@ public class ShizukuConfig {
         public final int uid;
 
         @SerializedName("flags")
-        public int flags;
+        public volatile int flags;
 
+        /**
+         * Replaced rather than mutated once the entry is published, so it can be read without
+         * holding the config manager lock.
+         */
         @SerializedName("packages")
-        public List<String> packages;
+        public volatile Set<String> packages;
 
         public PackageEntry(int uid, int flags) {
             this.uid = uid;
             this.flags = flags;
-            this.packages = new ArrayList<>();
+            this.packages = new LinkedHashSet<>();
         }
 
         @Override
@@ -4,14 +4,20 @@ import static rikka.shizuku.server.ServerConstants.PERMISSION;
 
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.os.Build;
+import android.os.SystemClock;
 import android.util.AtomicFile;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -19,35 +25,48 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kotlin.collections.ArraysKt;
 import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
 import rikka.hidden.compat.UserManagerApis;
-import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.UserHandleCompat;
 
 public class ShizukuConfigManager extends ConfigManager {
 
     private static final Gson GSON_IN = new GsonBuilder()
             .create();
-    private static final Gson GSON_OUT = new GsonBuilder()
-            .setVersion(ShizukuConfig.LATEST_VERSION)
-            .create();
 
-    private static final long WRITE_DELAY = 10 * 1000;
+    private static final File DIR = new File("/data/local/tmp/shizuku");
+    private static final File LEGACY_FILE = new File(DIR, "shizuku.json");
+    private static final AtomicFile LEGACY_ATOMIC_FILE = new AtomicFile(LEGACY_FILE);
+
+    /**
+     * Newest lastUpdateTime of each user seen by the last reconciliation.
+     */
+    private static final AtomicFile SCAN_STATE_ATOMIC_FILE = new AtomicFile(new File(DIR, "shizuku.scan"));
 
-    private static final File FILE = new File("/data/local/tmp/shizuku/shizuku.json");
-    private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
+    private static final int RECONCILE_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final AtomicInteger RECONCILE_THREAD_ID = new AtomicInteger();
 
-    public static ShizukuConfig load() {
+    /**
+     * Import the JSON config written by previous versions.
+     */
+    public static ShizukuConfig loadLegacy() {
         FileInputStream stream;
         try {
-            stream = ATOMIC_FILE.openRead();
+            stream = LEGACY_ATOMIC_FILE.openRead();
         } catch (FileNotFoundException e) {
-            LOGGER.i("no existing config file " + ATOMIC_FILE.getBaseFile() + "; starting empty");
+            LOGGER.i("no existing config file " + LEGACY_ATOMIC_FILE.getBaseFile() + "; starting empty");
             return new ShizukuConfig();
         }
 
@@ -63,196 +82,474 @@ public class ShizukuConfigManager extends ConfigManager {
                 LOGGER.w("failed to close: " + e);
             }
         }
-        return config;
+        return config != null ? config : new ShizukuConfig();
     }
 
-    public static void write(ShizukuConfig config) {
-        synchronized (ATOMIC_FILE) {
-            FileOutputStream stream;
-            try {
-                stream = ATOMIC_FILE.startWrite();
-            } catch (IOException e) {
-                LOGGER.w("failed to write state: " + e);
-                return;
+    private final ShizukuConfigStore store = new ShizukuConfigStore(DIR);
+
+    private final ShizukuConfig config;
+
+    /**
+     * uid to entry index of {@link #config}. The array is never modified after being published,
+     * writers build a new one under the lock and swap it in, so readers don't need the lock.
+     */
+    private volatile SparseArray<ShizukuConfig.PackageEntry> index = new SparseArray<>();
+
+    /**
+     * Until every user has been reconciled, uids in here have been checked against the package
+     * manager by {@link #reconcileUid(int)}. Guarded by {@code this}.
+     */
+    private final SparseBooleanArray reconciledUids = new SparseBooleanArray();
+
+    private volatile boolean reconciled;
+
+    /**
+     * Reconciles users in parallel, threads go away once it's done.
+     */
+    private final ThreadPoolExecutor reconcileExecutor = new ThreadPoolExecutor(
+            RECONCILE_THREADS, RECONCILE_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            r -> new Thread(r, "ConfigReconcile-" + RECONCILE_THREAD_ID.incrementAndGet()));
+
+    /**
+     * Import {@link #LEGACY_FILE} and bring it to the latest version.
+     */
+    private static ShizukuConfig importLegacy() {
+        LOGGER.i("importing " + LEGACY_FILE);
+        ShizukuConfig config = loadLegacy();
+
+        if (config.packages == null) {
+            config.packages = new ArrayList<>();
+        }
+
+        if (config.version < 2) {
+            for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
+                entry.packages = new LinkedHashSet<>(PackageManagerApis.getPackagesForUidNoThrow(entry.uid));
             }
+        }
 
-            try {
-                String json = GSON_OUT.toJson(config);
-                stream.write(json.getBytes());
-
-                ATOMIC_FILE.finishWrite(stream);
-                LOGGER.v("config saved");
-            } catch (Throwable tr) {
-                LOGGER.w(tr, "can't save %s, restoring backup.", ATOMIC_FILE.getBaseFile());
-                ATOMIC_FILE.failWrite(stream);
+        for (ShizukuConfig.PackageEntry entry : config.packages) {
+            if (entry.packages == null) {
+                entry.packages = new LinkedHashSet<>();
             }
         }
+        return config;
     }
 
-    private final Runnable mWriteRunner = new Runnable() {
+    /**
+     * Only loads the stored config, call {@link #reconcileAsync()} to check it against installed
+     * packages.
+     */
+    public ShizukuConfigManager() {
+        this.config = store.load(ShizukuConfigManager::importLegacy);
+        rebuildIndexLocked();
+        reconcileExecutor.allowCoreThreadTimeOut(true);
+    }
 
-        @Override
-        public void run() {
-            write(config);
+    /**
+     * Drop entries whose packages have gone and pick up runtime permission grants, one thread
+     * per user. {@link #find(int)} reconciles the uid it is asked for on its own until this
+     * finishes, so answers are correct from the start.
+     */
+    public void reconcileAsync() {
+        List<Integer> users = UserManagerApis.getUserIdsNoThrow();
+        if (users.isEmpty()) {
+            finishReconcile(users);
+            return;
         }
-    };
 
-    private final ShizukuConfig config;
+        SparseLongArray lastUpdateTimes = readScanState();
+        SparseLongArray newLastUpdateTimes = new SparseLongArray(users.size());
 
-    public ShizukuConfigManager() {
-        this.config = load();
+        long start = SystemClock.elapsedRealtime();
+        AtomicInteger remaining = new AtomicInteger(users.size());
+        for (int userId : users) {
+            reconcileExecutor.execute(() -> {
+                long since = lastUpdateTimes.get(userId, -1);
+                long newest = since;
+                try {
+                    newest = reconcileUser(userId, since);
+                } catch (Throwable tr) {
+                    LOGGER.w(tr, "reconcile user %d", userId);
+                }
+                synchronized (newLastUpdateTimes) {
+                    newLastUpdateTimes.put(userId, newest);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    finishReconcile(users);
+                    writeScanState(newLastUpdateTimes);
+                    LOGGER.i("reconciled %d users in %d ms", users.size(), SystemClock.elapsedRealtime() - start);
+                }
+            });
+        }
+    }
 
-        boolean changed = false;
+    /**
+     * Reconcile entries of {@code userId}. Only packages updated at or after {@code since} are
+     * fetched with their permissions, other packages only get their runtime permission state
+     * checked again. With {@code since} being -1, every package is examined.
+     *
+     * @return the newest {@link PackageInfo#lastUpdateTime} seen, to be passed as {@code since}
+     * next time
+     */
+    private long reconcileUser(int userId, long since) {
+        if (since > System.currentTimeMillis()) {
+            LOGGER.w("clock went backwards, full scan for user %d", userId);
+            since = -1;
+        }
 
-        if (config.packages == null) {
-            config.packages = new ArrayList<>();
-            changed = true;
+        boolean full = since == -1;
+        List<PackageInfo> installed = PackageManagerApis.getInstalledPackagesNoThrow(full ? PackageManager.GET_PERMISSIONS : 0, userId);
+        if (installed.isEmpty()) {
+            return since;
         }
 
-        if (config.version < 2) {
-            for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
-                entry.packages = PackageManagerApis.getPackagesForUidNoThrow(entry.uid);
+        SparseArray<List<String>> packagesForUid = new SparseArray<>();
+        for (PackageInfo pi : installed) {
+            if (pi == null || pi.applicationInfo == null) {
+                continue;
+            }
+            List<String> packages = packagesForUid.get(pi.applicationInfo.uid);
+            if (packages == null) {
+                packages = new ArrayList<>(1);
+                packagesForUid.put(pi.applicationInfo.uid, packages);
             }
-            changed = true;
+            packages.add(pi.packageName);
         }
 
-        for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
-            if (entry.packages == null) {
-                entry.packages = new ArrayList<>();
+        synchronized (this) {
+            for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
+                if (UserHandleCompat.getUserId(entry.uid) != userId || reconciledUids.get(entry.uid)) {
+                    continue;
+                }
+                List<String> packages = packagesForUid.get(entry.uid);
+                validateLocked(entry, packages != null ? packages : Collections.emptyList());
             }
+        }
 
-            List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(entry.uid);
-            if (packages.isEmpty()) {
-                LOGGER.i("remove config for uid %d since it has gone", entry.uid);
-                config.packages.remove(entry);
-                changed = true;
+        long newest = since;
+        SparseBooleanArray examinedUids = new SparseBooleanArray();
+        int changedPackages = 0;
+
+        for (PackageInfo pi : installed) {
+            if (pi == null || pi.applicationInfo == null) {
                 continue;
             }
+            newest = Math.max(newest, pi.lastUpdateTime);
 
-            boolean packagesChanged = true;
-
-            for (String packageName : entry.packages) {
-                if (packages.contains(packageName)) {
-                    packagesChanged = false;
-                    break;
+            String[] requestedPermissions = pi.requestedPermissions;
+            if (!full) {
+                if (pi.lastUpdateTime < since) {
+                    continue;
                 }
+                changedPackages++;
+                PackageInfo piWithPermissions = PackageManagerApis.getPackageInfoNoThrow(pi.packageName, PackageManager.GET_PERMISSIONS, userId);
+                requestedPermissions = piWithPermissions != null ? piWithPermissions.requestedPermissions : null;
+            }
+            if (requestedPermissions == null || !ArraysKt.contains(requestedPermissions, PERMISSION)) {
+                continue;
             }
 
-            final int rawSize = entry.packages.size();
-            Set<String> s = new LinkedHashSet<>(entry.packages);
-            entry.packages.clear();
-            entry.packages.addAll(s);
-            final int shrunkSize = entry.packages.size();
-            if (shrunkSize < rawSize) {
-                LOGGER.w("entry.packages has duplicate! Shrunk. (%d -> %d)", rawSize, shrunkSize);
+            int uid = pi.applicationInfo.uid;
+            examinedUids.put(uid, true);
+            Boolean allowed = checkPermission(uid);
+            if (allowed == null) {
+                continue;
             }
 
-            if (packagesChanged) {
-                LOGGER.i("remove config for uid %d since the packages for it changed", entry.uid);
-                config.packages.remove(entry);
-                changed = true;
+            synchronized (this) {
+                if (!reconciledUids.get(uid)) {
+                    updatePermissionLocked(uid, pi.packageName, allowed);
+                }
             }
         }
 
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null
-                        || pi.applicationInfo == null
-                        || pi.requestedPermissions == null
-                        || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    continue;
+        if (!full) {
+            // Unchanged packages that request the permission all have an entry, the runtime
+            // permission could still have been changed from outside
+            List<ShizukuConfig.PackageEntry> entries = new ArrayList<>();
+            synchronized (this) {
+                for (ShizukuConfig.PackageEntry entry : config.packages) {
+                    if (UserHandleCompat.getUserId(entry.uid) == userId && !examinedUids.get(entry.uid)) {
+                        entries.add(entry);
+                    }
                 }
+            }
 
-                int uid = pi.applicationInfo.uid;
-                boolean allowed;
-                try {
-                    allowed = PermissionManagerApis.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
-                } catch (Throwable e) {
-                    LOGGER.w("checkPermission");
+            for (ShizukuConfig.PackageEntry entry : entries) {
+                Boolean allowed = checkPermission(entry.uid);
+                if (allowed == null) {
                     continue;
                 }
 
-                List<String> packages = new ArrayList<>();
-                packages.add(pi.packageName);
+                synchronized (this) {
+                    if (!reconciledUids.get(entry.uid) && findLocked(entry.uid) == entry) {
+                        persistUpdateLocked(updateLocked(entry.uid, null, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : 0));
+                    }
+                }
+            }
+        }
 
-                updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : 0);
-                changed = true;
+        LOGGER.i("reconciled user %d, %s, %d packages changed", userId, full ? "full scan" : "incremental", changedPackages);
+        return newest;
+    }
+
+    private static SparseLongArray readScanState() {
+        SparseLongArray state = new SparseLongArray();
+        try (DataInputStream in = new DataInputStream(SCAN_STATE_ATOMIC_FILE.openRead())) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                state.put(in.readInt(), in.readLong());
             }
+        } catch (FileNotFoundException e) {
+            LOGGER.i("no scan state, full scan");
+        } catch (IOException e) {
+            LOGGER.w(e, "read scan state");
+            state.clear();
+        }
+        return state;
+    }
+
+    private static void writeScanState(SparseLongArray state) {
+        FileOutputStream stream;
+        try {
+            stream = SCAN_STATE_ATOMIC_FILE.startWrite();
+        } catch (IOException e) {
+            LOGGER.w("failed to write scan state: " + e);
+            return;
         }
 
-        if (changed) {
-            scheduleWriteLocked();
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(state.size());
+            for (int i = 0; i < state.size(); i++) {
+                out.writeInt(state.keyAt(i));
+                out.writeLong(state.valueAt(i));
+            }
+            out.flush();
+            SCAN_STATE_ATOMIC_FILE.finishWrite(stream);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "can't save %s, restoring backup.", SCAN_STATE_ATOMIC_FILE.getBaseFile());
+            SCAN_STATE_ATOMIC_FILE.failWrite(stream);
         }
     }
 
-    private void scheduleWriteLocked() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            if (HandlerKt.getWorkerHandler().hasCallbacks(mWriteRunner)) {
+    private synchronized void finishReconcile(List<Integer> users) {
+        // Entries of users that no longer exist
+        for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
+            if (!users.contains(UserHandleCompat.getUserId(entry.uid))
+                    && !reconciledUids.get(entry.uid)
+                    && PackageManagerApis.getPackagesForUidNoThrow(entry.uid).isEmpty()) {
+                LOGGER.i("remove config for uid %d since it has gone", entry.uid);
+                persistRemoveLocked(entry.uid);
+            }
+        }
+
+        reconciled = true;
+        reconciledUids.clear();
+    }
+
+    @Nullable
+    private static Boolean checkPermission(int uid) {
+        try {
+            return PermissionManagerApis.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
+        } catch (Throwable e) {
+            LOGGER.w("checkPermission");
+            return null;
+        }
+    }
+
+    private void validateLocked(ShizukuConfig.PackageEntry entry, Collection<String> packages) {
+        if (packages.isEmpty()) {
+            LOGGER.i("remove config for uid %d since it has gone", entry.uid);
+            persistRemoveLocked(entry.uid);
+            return;
+        }
+
+        for (String packageName : entry.packages) {
+            if (packages.contains(packageName)) {
                 return;
             }
-        } else {
-            HandlerKt.getWorkerHandler().removeCallbacks(mWriteRunner);
         }
-        HandlerKt.getWorkerHandler().postDelayed(mWriteRunner, WRITE_DELAY);
+
+        LOGGER.i("remove config for uid %d since the packages for it changed", entry.uid);
+        persistRemoveLocked(entry.uid);
     }
 
-    private ShizukuConfig.PackageEntry findLocked(int uid) {
-        for (ShizukuConfig.PackageEntry entry : config.packages) {
-            if (uid == entry.uid) {
-                return entry;
+    private void updatePermissionLocked(int uid, String packageName, boolean allowed) {
+        List<String> packages = new ArrayList<>();
+        packages.add(packageName);
+
+        persistUpdateLocked(updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : 0));
+    }
+
+    /**
+     * Journal a change made by reconciliation, the same way {@link #update} does. Compaction alone
+     * is not enough, it is skipped while another one is running.
+     */
+    private void persistUpdateLocked(@Nullable ShizukuConfig.PackageEntry entry) {
+        if (entry != null && store.appendUpdate(entry)) {
+            compactLocked();
+        }
+    }
+
+    private void persistRemoveLocked(int uid) {
+        if (removeLocked(uid) && store.appendRemove(uid)) {
+            compactLocked();
+        }
+    }
+
+    /**
+     * What {@link #reconcileUser(int, long)} does, for a single uid. The package manager is asked
+     * without holding the lock, so that checks of other uids don't wait for it, and the result is
+     * applied under the lock unless the uid has been reconciled meanwhile.
+     */
+    private void reconcileUid(int uid) {
+        synchronized (this) {
+            if (reconciled || reconciledUids.get(uid)) {
+                return;
+            }
+        }
+
+        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
+        int userId = UserHandleCompat.getUserId(uid);
+        List<String> requesting = new ArrayList<>(1);
+        for (String packageName : packages) {
+            PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+            if (pi == null
+                    || pi.requestedPermissions == null
+                    || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+                continue;
+            }
+            requesting.add(packageName);
+        }
+        Boolean allowed = requesting.isEmpty() ? null : checkPermission(uid);
+
+        synchronized (this) {
+            if (reconciled || reconciledUids.get(uid)) {
+                return;
+            }
+            reconciledUids.put(uid, true);
+
+            ShizukuConfig.PackageEntry entry = findLocked(uid);
+            if (entry != null) {
+                validateLocked(entry, packages);
+            }
+            if (allowed != null) {
+                for (String packageName : requesting) {
+                    updatePermissionLocked(uid, packageName, allowed);
+                }
             }
         }
-        return null;
+    }
+
+    private void rebuildIndexLocked() {
+        SparseArray<ShizukuConfig.PackageEntry> newIndex = new SparseArray<>(config.packages.size());
+        for (ShizukuConfig.PackageEntry entry : config.packages) {
+            newIndex.put(entry.uid, entry);
+        }
+        index = newIndex;
+    }
+
+    private void compactLocked() {
+        store.compact(ShizukuConfigStore.snapshot(config.packages));
+    }
+
+    private ShizukuConfig.PackageEntry findLocked(int uid) {
+        return index.get(uid);
     }
 
     @Nullable
     public ShizukuConfig.PackageEntry find(int uid) {
-        synchronized (this) {
-            return findLocked(uid);
+        if (!reconciled) {
+            reconcileUid(uid);
         }
+        return index.get(uid);
     }
 
-    private void updateLocked(int uid, List<String> packages, int mask, int values) {
+    @Nullable
+    private ShizukuConfig.PackageEntry updateLocked(int uid, Collection<String> packages, int mask, int values) {
         ShizukuConfig.PackageEntry entry = findLocked(uid);
         if (entry == null) {
             entry = new ShizukuConfig.PackageEntry(uid, mask & values);
+            if (packages != null) {
+                entry.packages.addAll(packages);
+            }
             config.packages.add(entry);
+
+            SparseArray<ShizukuConfig.PackageEntry> newIndex = index.clone();
+            newIndex.put(uid, entry);
+            index = newIndex;
         } else {
             int newValue = (entry.flags & ~mask) | (mask & values);
             if (newValue == entry.flags) {
-                return;
+                return null;
             }
             entry.flags = newValue;
-        }
-        if (packages != null) {
-            for (String packageName : packages) {
-                if (entry.packages.contains(packageName)) {
-                    continue;
-                }
-                entry.packages.add(packageName);
+
+            if (packages != null && !entry.packages.containsAll(packages)) {
+                Set<String> newPackages = new LinkedHashSet<>(entry.packages);
+                newPackages.addAll(packages);
+                entry.packages = newPackages;
             }
         }
-        scheduleWriteLocked();
+        return entry;
+    }
+
+    /**
+     * An explicit change is newer than anything a reconciliation still running has looked up.
+     */
+    private void markReconciledLocked(int uid) {
+        if (!reconciled) {
+            reconciledUids.put(uid, true);
+        }
     }
 
     public void update(int uid, List<String> packages, int mask, int values) {
         synchronized (this) {
-            updateLocked(uid, packages, mask, values);
+            markReconciledLocked(uid);
+            ShizukuConfig.PackageEntry entry = updateLocked(uid, packages, mask, values);
+            if (entry != null && store.appendUpdate(entry)) {
+                compactLocked();
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #update} with {@code packages} being null for every uid in {@code values},
+     * but persisted as a single journal write.
+     */
+    public void updateAll(SparseIntArray values, int mask) {
+        synchronized (this) {
+            List<ShizukuConfig.PackageEntry> changed = new ArrayList<>(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                markReconciledLocked(values.keyAt(i));
+                ShizukuConfig.PackageEntry entry = updateLocked(values.keyAt(i), null, mask, values.valueAt(i));
+                if (entry != null) {
+                    changed.add(entry);
+                }
+            }
+            if (!changed.isEmpty() && store.appendUpdates(changed)) {
+                compactLocked();
+            }
         }
     }
 
-    private void removeLocked(int uid) {
+    private boolean removeLocked(int uid) {
         ShizukuConfig.PackageEntry entry = findLocked(uid);
         if (entry == null) {
-            return;
+            return false;
         }
         config.packages.remove(entry);
-        scheduleWriteLocked();
+
+        SparseArray<ShizukuConfig.PackageEntry> newIndex = index.clone();
+        newIndex.remove(uid);
+        index = newIndex;
+        return true;
     }
 
     public void remove(int uid) {
         synchronized (this) {
-            removeLocked(uid);
+            persistRemoveLocked(uid);
         }
     }
 }
@@ -0,0 +1,471 @@
+package rikka.shizuku.server;
+
+import android.util.AtomicFile;
+import android.util.SparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Binary storage of {@link ShizukuConfig}.
+ * <p>
+ * The config is stored as a base table ({@code shizuku.bin}), which is memory-mapped on load, plus
+ * append-only journals ({@code shizuku.journal.<generation>}) that record every change made after
+ * the base table was written. Compaction starts a new journal generation, writes a new base table
+ * in the background and only then deletes the journals it covers, so a kill at any point loses
+ * nothing that was appended.
+ * <p>
+ * The base table it replaces is kept as {@code shizuku.bin.prev}, with the journals written since,
+ * so that a corrupt base table can be recovered from the one before it.
+ * <p>
+ * Until a base table has been written, the config starts from what {@link Importer} returns, so
+ * journals left by a first run that never got its base table written are replayed on top of the
+ * imported config rather than replacing it.
+ */
+public class ShizukuConfigStore {
+
+    /**
+     * Provides the entries to start from when no base table has ever been written.
+     */
+    public interface Importer {
+
+        ShizukuConfig load();
+    }
+
+    private static final Logger LOGGER = new Logger("ShizukuConfigStore");
+
+    private static final int BASE_MAGIC = 0x535a4b43; // SZKC
+    private static final int JOURNAL_MAGIC = 0x535a4b4a; // SZKJ
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte OP_UPDATE = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final String BASE_NAME = "shizuku.bin";
+    private static final String PREVIOUS_BASE_NAME = "shizuku.bin.prev";
+    private static final String JOURNAL_PREFIX = "shizuku.journal.";
+
+    private static final int COMPACT_THRESHOLD = 256;
+
+    private final File dir;
+    private final AtomicFile baseFile;
+    private final AtomicFile previousBaseFile;
+
+    private long generation;
+
+    private FileOutputStream journal;
+    private int journalRecords;
+    private boolean compacting;
+
+    public ShizukuConfigStore(File dir) {
+        this.dir = dir;
+        this.baseFile = new AtomicFile(new File(dir, BASE_NAME));
+        this.previousBaseFile = new AtomicFile(new File(dir, PREVIOUS_BASE_NAME));
+    }
+
+    private File journalFile(long generation) {
+        return new File(dir, JOURNAL_PREFIX + generation);
+    }
+
+    private long[] listJournalGenerations() {
+        String[] names = dir.list();
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] generations = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(JOURNAL_PREFIX)) {
+                continue;
+            }
+            try {
+                generations[count++] = Long.parseLong(name.substring(JOURNAL_PREFIX.length()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        generations = Arrays.copyOf(generations, count);
+        Arrays.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Load the config from the base table (or the previous one if it can't be read) and replay the
+     * journals on top of it.
+     * <p>
+     * If there is no base table at all, the config is imported from {@code importer} and written
+     * as the base table before this returns, so nothing appended afterwards can end up in a
+     * journal without the imported entries below it.
+     */
+    public synchronized ShizukuConfig load(Importer importer) {
+        SparseArray<ShizukuConfig.PackageEntry> entries = new SparseArray<>();
+        long loadedGeneration = readBase(baseFile, entries);
+        long[] journals = listJournalGenerations();
+
+        boolean hasBase = loadedGeneration != -1 || baseFile.getBaseFile().exists();
+        if (loadedGeneration == -1 && hasBase) {
+            LOGGER.e("%s is corrupt, loading %s", baseFile.getBaseFile(), previousBaseFile.getBaseFile());
+        }
+        if (loadedGeneration == -1) {
+            loadedGeneration = readBase(previousBaseFile, entries);
+            hasBase |= loadedGeneration != -1 || previousBaseFile.getBaseFile().exists();
+        }
+
+        if (!hasBase) {
+            if (journals.length > 0) {
+                LOGGER.w("journals without a base table, importing again");
+            }
+            for (ShizukuConfig.PackageEntry entry : importer.load().packages) {
+                entries.put(entry.uid, entry);
+            }
+        } else if (loadedGeneration == -1) {
+            LOGGER.e("no readable base table, only journals are replayed");
+        }
+
+        generation = Math.max(loadedGeneration, 0);
+        for (long journalGeneration : journals) {
+            if (journalGeneration < loadedGeneration) {
+                continue;
+            }
+            journalRecords += replayJournal(journalFile(journalGeneration), entries);
+            generation = journalGeneration;
+        }
+
+        List<ShizukuConfig.PackageEntry> packages = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            packages.add(entries.valueAt(i));
+        }
+        LOGGER.i("loaded %d entries, generation %d, %d journal records", packages.size(), generation, journalRecords);
+
+        if (!hasBase) {
+            // The journals replayed stay until a compaction covers them, so if this fails the
+            // next load imports and replays them again
+            if (writeBase(snapshot(packages), generation)) {
+                LOGGER.i("imported %d entries", packages.size());
+            } else {
+                LOGGER.e("unable to write the imported config");
+            }
+        }
+        return new ShizukuConfig(packages);
+    }
+
+    private static long readBase(AtomicFile file, SparseArray<ShizukuConfig.PackageEntry> out) {
+        FileInputStream stream;
+        try {
+            stream = file.openRead();
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+
+        try (FileChannel channel = stream.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != BASE_MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                LOGGER.e("bad header in %s", file.getBaseFile());
+                out.clear();
+                return -1;
+            }
+            buffer.getInt(); // config version
+            long baseGeneration = buffer.getLong();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                ShizukuConfig.PackageEntry entry = readEntry(buffer);
+                out.put(entry.uid, entry);
+            }
+            return baseGeneration;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.e(e, "read %s", file.getBaseFile());
+            out.clear();
+            return -1;
+        }
+    }
+
+    /**
+     * Copy the base table on disk to {@link #previousBaseFile} if it can be read.
+     *
+     * @return its generation, or -1
+     */
+    private long keepPreviousBase() {
+        SparseArray<ShizukuConfig.PackageEntry> entries = new SparseArray<>();
+        long previousGeneration = readBase(baseFile, entries);
+        if (previousGeneration == -1) {
+            return -1;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            byte[] bytes = baseFile.readFully();
+            stream = previousBaseFile.startWrite();
+            stream.write(bytes);
+            previousBaseFile.finishWrite(stream);
+            return previousGeneration;
+        } catch (IOException e) {
+            LOGGER.w(e, "keep %s", previousBaseFile.getBaseFile());
+            if (stream != null) {
+                previousBaseFile.failWrite(stream);
+            }
+            return -1;
+        }
+    }
+
+    private int replayJournal(File file, SparseArray<ShizukuConfig.PackageEntry> out) {
+        int records = 0;
+        long validLength = 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != JOURNAL_MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                LOGGER.w("bad header in %s", file);
+            } else {
+                validLength = buffer.position();
+                while (buffer.remaining() >= 4) {
+                    int length = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining()) {
+                        break;
+                    }
+
+                    ByteBuffer record = buffer.slice();
+                    record.limit(length);
+                    buffer.position(buffer.position() + length);
+
+                    byte op = record.get();
+                    if (op == OP_UPDATE) {
+                        ShizukuConfig.PackageEntry entry = readEntry(record);
+                        out.put(entry.uid, entry);
+                    } else if (op == OP_REMOVE) {
+                        out.remove(record.getInt());
+                    } else {
+                        break;
+                    }
+                    validLength = buffer.position();
+                    records++;
+                }
+            }
+
+            if (validLength < channel.size()) {
+                LOGGER.w("truncate %s from %d to %d", file, channel.size(), validLength);
+                channel.truncate(validLength);
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.w(e, "replay %s", file);
+        }
+        return records;
+    }
+
+    private static ShizukuConfig.PackageEntry readEntry(ByteBuffer buffer) {
+        ShizukuConfig.PackageEntry entry = new ShizukuConfig.PackageEntry(buffer.getInt(), buffer.getInt());
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(bytes);
+            entry.packages.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return entry;
+    }
+
+    private static void writeEntry(DataOutputStream out, ShizukuConfig.PackageEntry entry) throws IOException {
+        Set<String> packages = entry.packages;
+        out.writeInt(entry.uid);
+        out.writeInt(entry.flags);
+        out.writeInt(packages.size());
+        for (String packageName : packages) {
+            byte[] bytes = packageName.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Append the current state of the given entries to the journal as a single write.
+     *
+     * @return whether the journal has grown enough to be compacted
+     */
+    public synchronized boolean appendUpdates(Collection<ShizukuConfig.PackageEntry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            for (ShizukuConfig.PackageEntry entry : entries) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(record);
+                out.writeByte(OP_UPDATE);
+                writeEntry(out, entry);
+                writeRecord(bytes, record);
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "encode journal record");
+            return false;
+        }
+        return appendLocked(bytes.toByteArray(), entries.size());
+    }
+
+    public boolean appendUpdate(ShizukuConfig.PackageEntry entry) {
+        List<ShizukuConfig.PackageEntry> entries = new ArrayList<>(1);
+        entries.add(entry);
+        return appendUpdates(entries);
+    }
+
+    public synchronized boolean appendRemove(int uid) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(OP_REMOVE);
+            out.writeInt(uid);
+            writeRecord(bytes, record);
+        } catch (IOException e) {
+            LOGGER.w(e, "encode journal record");
+            return false;
+        }
+        return appendLocked(bytes.toByteArray(), 1);
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, ByteArrayOutputStream record) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(record.size());
+        record.writeTo(data);
+    }
+
+    private boolean appendLocked(byte[] bytes, int records) {
+        try {
+            if (journal == null) {
+                File file = journalFile(generation);
+                boolean newFile = file.length() == 0;
+                if (newFile) {
+                    //noinspection ResultOfMethodCallIgnored
+                    dir.mkdirs();
+                }
+                journal = new FileOutputStream(file, true);
+                if (newFile) {
+                    ByteBuffer header = ByteBuffer.allocate(8);
+                    header.putInt(JOURNAL_MAGIC).putInt(FORMAT_VERSION);
+                    journal.write(header.array());
+                }
+            }
+            journal.write(bytes);
+            journalRecords += records;
+        } catch (IOException e) {
+            LOGGER.w(e, "append to journal %d", generation);
+            closeJournalLocked();
+            return false;
+        }
+        return !compacting && journalRecords >= COMPACT_THRESHOLD;
+    }
+
+    private void closeJournalLocked() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.w("failed to close: " + e);
+        }
+        journal = null;
+    }
+
+    /**
+     * Start a new journal and write {@code entries} as the new base table in the background.
+     * <p>
+     * {@code entries} must be a snapshot of the config taken together with this call, every
+     * change made after it will go to the new journal.
+     */
+    public void compact(List<ShizukuConfig.PackageEntry> entries) {
+        long newGeneration;
+        synchronized (this) {
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+            closeJournalLocked();
+            newGeneration = ++generation;
+            journalRecords = 0;
+        }
+
+        HandlerKt.getWorkerHandler().post(() -> {
+            try {
+                long previousGeneration = keepPreviousBase();
+                if (writeBase(entries, newGeneration)) {
+                    // Journals since the previous base are kept in case the new one gets corrupt
+                    for (long journalGeneration : listJournalGenerations()) {
+                        if (journalGeneration < previousGeneration) {
+                            //noinspection ResultOfMethodCallIgnored
+                            journalFile(journalGeneration).delete();
+                        }
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        });
+    }
+
+    private boolean writeBase(List<ShizukuConfig.PackageEntry> entries, long generation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(BASE_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(ShizukuConfig.LATEST_VERSION);
+            out.writeLong(generation);
+            out.writeInt(entries.size());
+            for (ShizukuConfig.PackageEntry entry : entries) {
+                writeEntry(out, entry);
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "encode base");
+            return false;
+        }
+
+        FileOutputStream stream;
+        try {
+            stream = baseFile.startWrite();
+        } catch (IOException e) {
+            LOGGER.w("failed to write state: " + e);
+            return false;
+        }
+
+        try {
+            bytes.writeTo(stream);
+            baseFile.finishWrite(stream);
+            LOGGER.v("base saved, generation %d, %d entries", generation, entries.size());
+            return true;
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "can't save %s, restoring backup.", baseFile.getBaseFile());
+            baseFile.failWrite(stream);
+            return false;
+        }
+    }
+
+    /**
+     * Copy {@code entries} so that it can be written while the originals keep changing.
+     */
+    public static List<ShizukuConfig.PackageEntry> snapshot(Collection<ShizukuConfig.PackageEntry> entries) {
+        List<ShizukuConfig.PackageEntry> snapshot = new ArrayList<>(entries.size());
+        for (ShizukuConfig.PackageEntry entry : entries) {
+            ShizukuConfig.PackageEntry copy = new ShizukuConfig.PackageEntry(entry.uid, entry.flags);
+            copy.packages = new LinkedHashSet<>(entry.packages);
+            snapshot.add(copy);
+        }
+        return snapshot;
+    }
+}
@@ -13,8 +13,8 @@ import static rikka.shizuku.ShizukuApiConstants.REQUEST_PERMISSION_REPLY_IS_ONET
 import static rikka.shizuku.server.ServerConstants.MANAGER_APPLICATION_ID;
 import static rikka.shizuku.server.ServerConstants.PERMISSION;
 
+import android.app.ActivityManager;
 import android.content.Context;
-import android.content.IContentProvider;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
@@ -22,6 +22,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.ddm.DdmHandleAppName;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -29,29 +30,40 @@ import android.os.Looper;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Pair;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
 
 import kotlin.collections.ArraysKt;
-import moe.shizuku.api.BinderContainer;
 import moe.shizuku.common.util.BuildUtils;
 import moe.shizuku.common.util.OsUtils;
 import moe.shizuku.server.IShizukuApplication;
+import moe.shizuku.server.IShizukuServiceConnection;
+import moe.shizuku.starter.ServiceStarter;
 import rikka.hidden.compat.ActivityManagerApis;
-import rikka.hidden.compat.DeviceIdleControllerApis;
 import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
 import rikka.hidden.compat.UserManagerApis;
 import rikka.parcelablelist.ParcelableListSlice;
 import rikka.rish.RishConfig;
 import rikka.shizuku.ShizukuApiConstants;
-import rikka.shizuku.server.api.IContentProviderUtils;
+import rikka.shizuku.server.api.IActivityManagerUtils;
+import rikka.shizuku.server.ktx.HandlerKt;
 import rikka.shizuku.server.util.HandlerUtil;
 import rikka.shizuku.server.util.UserHandleCompat;
 
@@ -67,10 +79,13 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     }
 
     private static void waitSystemService(String name) {
+        // Most of the time the service is only a moment away, start with a short wait and back off
+        long delay = 20;
         while (ServiceManager.getService(name) == null) {
             try {
-                LOGGER.i("service " + name + " is not started, wait 1s.");
-                Thread.sleep(1000);
+                LOGGER.i("service " + name + " is not started, wait " + delay + "ms.");
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, 1000);
             } catch (InterruptedException e) {
                 LOGGER.w(e.getMessage(), e);
             }
@@ -81,11 +96,22 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return PackageManagerApis.getApplicationInfoNoThrow(MANAGER_APPLICATION_ID, 0, 0);
     }
 
+    private static final long CLIENT_DELIVERY_STAGGER = 20;
+    private static final int CLIENT_DELIVERY_JITTER = 100;
+
     @SuppressWarnings({"FieldCanBeLocal"})
     private final Handler mainHandler = new Handler(Looper.myLooper());
     //private final Context systemContext = HiddenApiBridge.getSystemContext();
     private final ShizukuClientManager clientManager;
     private final ShizukuConfigManager configManager;
+    private final PackageInfoCache packageInfoCache = new PackageInfoCache();
+    private final PackageChangeMonitor packageChangeMonitor = new PackageChangeMonitor();
+    private final BinderDelivery binderDelivery = new BinderDelivery(this);
+    private final CallerPermissionCache callerPermissionCache = new CallerPermissionCache();
+    private final AsyncRemoteTransactions asyncRemoteTransactions = new AsyncRemoteTransactions();
+    private final RemoteResultCache remoteResultCache = new RemoteResultCache();
+    private final ApplicationView applicationView = new ApplicationView();
+    private final RecentClients recentClients = new RecentClients(new File("/data/local/tmp/shizuku/shizuku.recent"));
     private final int managerAppId;
 
     public ShizukuService() {
@@ -94,6 +120,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         HandlerUtil.setMainHandler(mainHandler);
 
         LOGGER.i("starting server...");
+        long startTime = SystemClock.elapsedRealtime();
 
         waitSystemService("package");
         waitSystemService(Context.ACTIVITY_SERVICE);
@@ -118,11 +145,24 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             }
         });
 
+        packageInfoCache.setOnPackageChangedListener(() -> {
+            remoteResultCache.invalidateAll();
+            applicationView.invalidate();
+        });
+        packageChangeMonitor.addListener(packageInfoCache);
+        packageChangeMonitor.addListener(remoteResultCache);
+        packageChangeMonitor.addListener(applicationView);
+        packageChangeMonitor.register();
+
         BinderSender.register(this);
 
-        mainHandler.post(() -> {
-            sendBinderToClient();
+        // Entries are reconciled on demand until this finishes, so there is no need to wait for it
+        configManager.reconcileAsync();
+
+        HandlerKt.getWorkerHandler().post(() -> {
             sendBinderToManager();
+            LOGGER.i("binder delivery to manager queued %d ms after start", SystemClock.elapsedRealtime() - startTime);
+            sendBinderToClient();
         });
     }
 
@@ -141,20 +181,21 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return new ShizukuConfigManager();
     }
 
+    CallerPermissionCache getCallerPermissionCache() {
+        return callerPermissionCache;
+    }
+
+    PackageInfoCache getPackageInfoCache() {
+        return packageInfoCache;
+    }
+
     @Override
     public boolean checkCallerManagerPermission(String func, int callingUid, int callingPid) {
         return UserHandleCompat.getAppId(callingUid) == managerAppId;
     }
 
     private int checkCallingPermission() {
-        try {
-            return ActivityManagerApis.checkPermission(ServerConstants.PERMISSION,
-                    Binder.getCallingPid(),
-                    Binder.getCallingUid());
-        } catch (Throwable tr) {
-            LOGGER.w(tr, "checkCallingPermission");
-            return PackageManager.PERMISSION_DENIED;
-        }
+        return callerPermissionCache.checkPermission(Binder.getCallingUid(), Binder.getCallingPid());
     }
 
     @Override
@@ -175,11 +216,31 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         System.exit(0);
     }
 
+    @Override
+    public int addUserService(IShizukuServiceConnection conn, Bundle options) {
+        int result = super.addUserService(conn, options);
+        if (result == 0 && options != null) {
+            getUserServiceManager().onUserServiceAdded(options, Binder.getCallingUid());
+        }
+        return result;
+    }
+
     @Override
     public void attachUserService(IBinder binder, Bundle options) {
         enforceManagerPermission("func");
 
+        String token = options != null ? options.getString(ShizukuApiConstants.USER_SERVICE_ARG_TOKEN) : null;
+        IBinder hostBinder = options != null ? options.getBinder(ServiceStarter.EXTRA_HOST_BINDER) : null;
+        if (hostBinder != null && getUserServiceManager().attachPooledHost(token, hostBinder)) {
+            return;
+        }
+
         super.attachUserService(binder, options);
+
+        if (hostBinder != null) {
+            getUserServiceManager().attachHost(token, hostBinder);
+        }
+        getUserServiceManager().onUserServiceAttached(token);
     }
 
     @Override
@@ -199,7 +260,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         boolean isManager;
         ClientRecord clientRecord = null;
 
-        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(callingUid);
+        List<String> packages = packageInfoCache.getPackagesForUid(callingUid);
         if (!packages.contains(requestPackageName)) {
             LOGGER.w("Request package " + requestPackageName + "does not belong to uid " + callingUid);
             throw new SecurityException("Request package " + requestPackageName + "does not belong to uid " + callingUid);
@@ -215,10 +276,15 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 LOGGER.w("Add client failed");
                 return;
             }
+            packageInfoCache.watch(requestPackageName, UserHandleCompat.getUserId(callingUid), application.asBinder());
         }
 
         LOGGER.d("attachApplication: %s %d %d", requestPackageName, callingUid, callingPid);
 
+        if (!isManager) {
+            recentClients.add(requestPackageName, UserHandleCompat.getUserId(callingUid));
+        }
+
         int replyServerVersion = ShizukuApiConstants.SERVER_VERSION;
         if (apiVersion == -1) {
             // ShizukuBinderWrapper has adapted API v13 in dev.rikka.shizuku:api 12.2.0, however
@@ -303,15 +369,18 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             }
         }
 
+        callerPermissionCache.invalidateUid(requestUid);
+
         if (!onetime) {
             configManager.update(requestUid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : ConfigManager.FLAG_DENIED);
+            applicationView.invalidate();
         }
 
         if (!onetime && allowed) {
             int userId = UserHandleCompat.getUserId(requestUid);
 
-            for (String packageName : PackageManagerApis.getPackagesForUidNoThrow(requestUid)) {
-                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+            for (String packageName : packageInfoCache.getPackagesForUid(requestUid)) {
+                PackageInfo pi = packageInfoCache.getPackageInfo(packageName, userId);
                 if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
                     continue;
                 }
@@ -334,8 +403,8 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
         if (allowRuntimePermission && (mask & ConfigManager.MASK_PERMISSION) != 0) {
             int userId = UserHandleCompat.getUserId(uid);
-            for (String packageName : PackageManagerApis.getPackagesForUidNoThrow(uid)) {
-                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+            for (String packageName : packageInfoCache.getPackagesForUid(uid)) {
+                PackageInfo pi = packageInfoCache.getPackageInfo(packageName, userId);
                 if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
                     continue;
                 }
@@ -361,6 +430,27 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return getFlagsForUidInternal(uid, mask, true);
     }
 
+    /**
+     * Flags of each uid in {@code uids}, with the number of uids allowed stored in the last element.
+     */
+    private int[] getFlagsForUids(int[] uids, int mask) {
+        int[] result = new int[uids.length + 1];
+        if (UserHandleCompat.getAppId(Binder.getCallingUid()) != managerAppId) {
+            LOGGER.w("getFlagsForUids is allowed to be called only from the manager");
+            return result;
+        }
+
+        int granted = 0;
+        for (int i = 0; i < uids.length; i++) {
+            result[i] = getFlagsForUidInternal(uids[i], mask, true);
+            if ((result[i] & ConfigManager.FLAG_ALLOWED) != 0) {
+                granted++;
+            }
+        }
+        result[uids.length] = granted;
+        return result;
+    }
+
     @Override
     public void updateFlagsForUid(int uid, int mask, int value) throws RemoteException {
         if (UserHandleCompat.getAppId(Binder.getCallingUid()) != managerAppId) {
@@ -371,6 +461,8 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         int userId = UserHandleCompat.getUserId(uid);
 
         if ((mask & ConfigManager.MASK_PERMISSION) != 0) {
+            callerPermissionCache.invalidateUid(uid);
+
             boolean allowed = (value & ConfigManager.FLAG_ALLOWED) != 0;
             boolean denied = (value & ConfigManager.FLAG_DENIED) != 0;
 
@@ -381,12 +473,14 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 } else {
                     record.allowed = false;
                     ActivityManagerApis.forceStopPackageNoThrow(record.packageName, UserHandleCompat.getUserId(record.uid));
-                    onPermissionRevoked(record.packageName);
                 }
             }
+            if (!allowed) {
+                onPermissionRevoked(uid);
+            }
 
-            for (String packageName : PackageManagerApis.getPackagesForUidNoThrow(uid)) {
-                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+            for (String packageName : packageInfoCache.getPackagesForUid(uid)) {
+                PackageInfo pi = packageInfoCache.getPackageInfo(packageName, userId);
                 if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
                     continue;
                 }
@@ -397,20 +491,256 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 } else {
                     PermissionManagerApis.revokeRuntimePermission(packageName, PERMISSION, userId);
                 }
-
-                // TODO kill user service using
             }
         }
 
         configManager.update(uid, null, mask, value);
+        applicationView.invalidate();
+    }
+
+    private boolean isManagerOrShell(int callingUid) {
+        return callingUid == 0 || callingUid == 2000 || UserHandleCompat.getAppId(callingUid) == managerAppId;
+    }
+
+    /**
+     * Same as calling {@link #updateFlagsForUid} with {@link ConfigManager#MASK_PERMISSION} for
+     * every uid in {@code values}, but the config is persisted once, every package is stopped at
+     * most once and runtime permissions are changed user by user.
+     * <p>
+     * The packages of every uid are looked up first and the config is written before anything
+     * else, so a failure leaves nothing half applied. Stopping clients and changing runtime
+     * permissions follow the config and are done as far as they can be.
+     */
+    private void updatePermissionFlagsForUids(SparseIntArray values) {
+        SparseArray<List<String>> grants = new SparseArray<>();
+        SparseArray<List<String>> revokes = new SparseArray<>();
+
+        for (int i = 0; i < values.size(); i++) {
+            int uid = values.keyAt(i);
+            int userId = UserHandleCompat.getUserId(uid);
+            boolean allowed = (values.valueAt(i) & ConfigManager.FLAG_ALLOWED) != 0;
+
+            SparseArray<List<String>> target = allowed ? grants : revokes;
+            List<String> packages = target.get(userId);
+            if (packages == null) {
+                packages = new ArrayList<>();
+                target.put(userId, packages);
+            }
+            for (String packageName : packageInfoCache.getPackagesForUid(uid)) {
+                PackageInfo pi = packageInfoCache.getPackageInfo(packageName, userId);
+                if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+                    continue;
+                }
+                packages.add(packageName);
+            }
+        }
+
+        configManager.updateAll(values, ConfigManager.MASK_PERMISSION);
+        applicationView.invalidate();
+
+        Set<String> stoppedPackages = new HashSet<>();
+        for (int i = 0; i < values.size(); i++) {
+            int uid = values.keyAt(i);
+            int userId = UserHandleCompat.getUserId(uid);
+            boolean allowed = (values.valueAt(i) & ConfigManager.FLAG_ALLOWED) != 0;
+            callerPermissionCache.invalidateUid(uid);
+
+            for (ClientRecord record : clientManager.findClients(uid)) {
+                record.allowed = allowed;
+                if (!allowed && stoppedPackages.add(record.packageName + ":" + userId)) {
+                    ActivityManagerApis.forceStopPackageNoThrow(record.packageName, userId);
+                }
+            }
+            if (!allowed) {
+                onPermissionRevoked(uid);
+            }
+        }
+
+        for (int i = 0; i < grants.size(); i++) {
+            int userId = grants.keyAt(i);
+            for (String packageName : grants.valueAt(i)) {
+                try {
+                    PermissionManagerApis.grantRuntimePermission(packageName, PERMISSION, userId);
+                } catch (Throwable tr) {
+                    LOGGER.w(tr, "grantRuntimePermission %s %d", packageName, userId);
+                }
+            }
+        }
+        for (int i = 0; i < revokes.size(); i++) {
+            int userId = revokes.keyAt(i);
+            for (String packageName : revokes.valueAt(i)) {
+                try {
+                    PermissionManagerApis.revokeRuntimePermission(packageName, PERMISSION, userId);
+                } catch (Throwable tr) {
+                    LOGGER.w(tr, "revokeRuntimePermission %s %d", packageName, userId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a policy of (package name or uid, user id, permission flags) entries from {@code data}
+     * and apply it as a whole. If any entry can't be resolved, or resolves to a uid that an
+     * earlier entry has, nothing is applied.
+     * <p>
+     * Only root, adb shell and the manager may apply a policy, so {@code rish --apply-policy}
+     * works from adb shell but not from the uid of a terminal app.
+     */
+    private void applyPermissionPolicy(Parcel data, Parcel reply) {
+        long start = SystemClock.elapsedRealtime();
+
+        int count = data.readInt();
+        if (count < 0 || count > ServerConstants.POLICY_MAX_ENTRIES) {
+            reply.writeException(new IllegalArgumentException("Policy has " + count + " entries, max " + ServerConstants.POLICY_MAX_ENTRIES));
+            return;
+        }
+
+        int[] status = new int[count];
+        SparseIntArray values = new SparseIntArray(count);
+        boolean resolved = true;
+
+        for (int i = 0; i < count; i++) {
+            String packageName = data.readString();
+            int uid = data.readInt();
+            int userId = data.readInt();
+            int value = data.readInt() & ConfigManager.MASK_PERMISSION;
+
+            if (packageName != null) {
+                PackageInfo pi = packageInfoCache.getPackageInfo(packageName, userId);
+                uid = pi != null && pi.applicationInfo != null ? pi.applicationInfo.uid : -1;
+            } else if (packageInfoCache.getPackagesForUid(uid).isEmpty()) {
+                uid = -1;
+            }
+
+            if (uid == -1) {
+                status[i] = ServerConstants.POLICY_RESULT_NOT_FOUND;
+                resolved = false;
+                continue;
+            }
+            if (values.indexOfKey(uid) >= 0) {
+                status[i] = ServerConstants.POLICY_RESULT_DUPLICATE;
+                resolved = false;
+                continue;
+            }
+            status[i] = ServerConstants.POLICY_RESULT_OK;
+            values.put(uid, value);
+        }
+
+        if (resolved) {
+            updatePermissionFlagsForUids(values);
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        LOGGER.i("applyPermissionPolicy: %d entries, %d uids, resolved=%s, %d ms",
+                count, values.size(), Boolean.toString(resolved), elapsed);
+
+        reply.writeNoException();
+        reply.writeInt(resolved ? values.size() : 0);
+        reply.writeLong(elapsed);
+        reply.writeIntArray(status);
+    }
+
+    /**
+     * Run remote transactions back to back for a caller whose permission has been checked.
+     * <p>
+     * Each entry in {@code data} is (binder, code, flags, int size, data of the size). For each
+     * entry, {@code reply} gets {@link ServerConstants#BATCH_RESULT_OK} followed by (int size, reply
+     * of the size), {@link ServerConstants#BATCH_RESULT_ERROR} followed by the error message, or
+     * {@link ServerConstants#BATCH_RESULT_SKIPPED} if the reply has grown past
+     * {@link ServerConstants#BATCH_MAX_REPLY_SIZE}. A failed entry doesn't stop the others.
+     */
+    private void transactRemoteBatch(Parcel data, Parcel reply) {
+        int count = data.readInt();
+        if (count < 0 || count > ServerConstants.BATCH_MAX_ENTRIES) {
+            reply.writeException(new IllegalArgumentException("Batch has " + count + " entries, max " + ServerConstants.BATCH_MAX_ENTRIES));
+            return;
+        }
+
+        reply.writeNoException();
+        reply.writeInt(count);
+        int replyStart = reply.dataPosition();
+
+        for (int i = 0; i < count; i++) {
+            IBinder targetBinder = data.readStrongBinder();
+            int targetCode = data.readInt();
+            int targetFlags = data.readInt();
+            int size = data.readInt();
+            int position = data.dataPosition();
+
+            if (size < 0 || size > data.dataAvail()) {
+                // The rest can't be located
+                for (; i < count; i++) {
+                    reply.writeInt(ServerConstants.BATCH_RESULT_ERROR);
+                    reply.writeString("Bad size " + size + " of entry " + i);
+                }
+                return;
+            }
+            data.setDataPosition(position + size);
+
+            if (reply.dataPosition() - replyStart > ServerConstants.BATCH_MAX_REPLY_SIZE) {
+                reply.writeInt(ServerConstants.BATCH_RESULT_SKIPPED);
+                continue;
+            }
+
+            Parcel newData = Parcel.obtain();
+            Parcel newReply = Parcel.obtain();
+            long id = Binder.clearCallingIdentity();
+            try {
+                if (targetBinder == null) {
+                    throw new NullPointerException("Target binder of entry " + i + " is null");
+                }
+                newData.appendFrom(data, position, size);
+                targetBinder.transact(targetCode, newData, newReply, targetFlags);
+
+                reply.writeInt(ServerConstants.BATCH_RESULT_OK);
+                reply.writeInt(newReply.dataSize());
+                reply.appendFrom(newReply, 0, newReply.dataSize());
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "transactRemoteBatch: entry %d, code=%d", i, targetCode);
+                reply.writeInt(ServerConstants.BATCH_RESULT_ERROR);
+                reply.writeString(tr.toString());
+            } finally {
+                Binder.restoreCallingIdentity(id);
+                newReply.recycle();
+                newData.recycle();
+            }
+        }
+        LOGGER.d("transactRemoteBatch: uid=%d, %d entries", Binder.getCallingUid(), count);
     }
 
-    private void onPermissionRevoked(String packageName) {
+    /**
+     * Same as transactRemote, except the data is (binder, code, flags, int size, data of the size)
+     * and the reply may come from {@link RemoteResultCache}. Only for calls that don't change
+     * anything, the client marks them by using this transaction.
+     */
+    private void transactRemoteCached(Parcel data, Parcel reply) throws RemoteException {
+        IBinder targetBinder = data.readStrongBinder();
+        int targetCode = data.readInt();
+        int targetFlags = data.readInt();
+        int size = data.readInt();
+        if (targetBinder == null || size < 0 || size > data.dataAvail()) {
+            throw new IllegalArgumentException("Bad target binder or size");
+        }
+
+        int userId = UserHandleCompat.getUserId(Binder.getCallingUid());
+        long id = Binder.clearCallingIdentity();
+        try {
+            remoteResultCache.transact(targetBinder, targetCode, targetFlags, data, size, reply, userId);
+        } finally {
+            Binder.restoreCallingIdentity(id);
+        }
+    }
+
+    private void onPermissionRevoked(int uid) {
         // TODO add runtime permission listener
-        getUserServiceManager().removeUserServicesForPackage(packageName);
+        getUserServiceManager().removeUserServicesForUid(uid);
     }
 
     private ParcelableListSlice<PackageInfo> getApplications(int userId) {
+        return new ParcelableListSlice<>(getApplicationList(userId));
+    }
+
+    private List<PackageInfo> getApplicationList(int userId) {
         List<PackageInfo> list = new ArrayList<>();
         List<Integer> users = new ArrayList<>();
         if (userId == -1) {
@@ -444,7 +774,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             }
 
         }
-        return new ParcelableListSlice<>(list);
+        return list;
     }
 
     @Override
@@ -457,117 +787,208 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             reply.writeNoException();
             result.writeToParcel(reply, android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
             return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getApplicationDescriptors) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            int callingUid = Binder.getCallingUid();
+            if (!isManagerOrShell(callingUid)) {
+                LOGGER.w("getApplicationDescriptors is not allowed for uid %d", callingUid);
+                reply.writeException(new SecurityException("getApplicationDescriptors is not allowed for uid " + callingUid));
+                return true;
+            }
+            int userId = data.readInt();
+            List<PackageInfo> list = getApplicationList(userId);
+            reply.writeNoException();
+            ApplicationView.writeDescriptors(list, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_syncApplications) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            int callingUid = Binder.getCallingUid();
+            if (!isManagerOrShell(callingUid)) {
+                LOGGER.w("syncApplications is not allowed for uid %d", callingUid);
+                reply.writeException(new SecurityException("syncApplications is not allowed for uid " + callingUid));
+                return true;
+            }
+            int userId = data.readInt();
+            long sinceEpoch = data.readLong();
+            long sinceGeneration = data.readLong();
+            int offset = data.readInt();
+            int limit = Math.min(data.readInt(), ServerConstants.SYNC_MAX_PAGE_SIZE);
+            if (offset == 0 && applicationView.needsRefresh(sinceEpoch)) {
+                // Later pages are served from the same state, the client checks the generation
+                applicationView.refresh(getApplicationList(-1));
+            }
+            reply.writeNoException();
+            applicationView.write(sinceEpoch, sinceGeneration, userId, offset, limit, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_applyPermissionPolicy) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            int callingUid = Binder.getCallingUid();
+            if (!isManagerOrShell(callingUid)) {
+                LOGGER.w("applyPermissionPolicy is not allowed for uid %d", callingUid);
+                reply.writeException(new SecurityException("applyPermissionPolicy is only allowed for root, adb shell and the manager, not uid " + callingUid));
+                return true;
+            }
+            applyPermissionPolicy(data, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_transactRemoteBatch) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            try {
+                enforceCallingPermission("transactRemoteBatch");
+            } catch (SecurityException e) {
+                reply.writeException(e);
+                return true;
+            }
+            transactRemoteBatch(data, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_transactRemoteAsync) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            try {
+                enforceCallingPermission("transactRemoteAsync");
+            } catch (SecurityException e) {
+                reply.writeException(e);
+                return true;
+            }
+            asyncRemoteTransactions.submit(data, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_transactRemoteCached) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            try {
+                enforceCallingPermission("transactRemoteCached");
+            } catch (SecurityException e) {
+                reply.writeException(e);
+                return true;
+            }
+            transactRemoteCached(data, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getFlagsForUids) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            int mask = data.readInt();
+            int[] uids = data.createIntArray();
+            int[] result = getFlagsForUids(uids != null ? uids : new int[0], mask);
+            reply.writeNoException();
+            reply.writeIntArray(result);
+            return true;
         }
         return super.onTransact(code, data, reply, flags);
     }
 
-    void sendBinderToClient() {
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToClient(this, userId);
+    @Override
+    protected void dump(@NonNull FileDescriptor fd, @NonNull PrintWriter pw, @Nullable String[] args) {
+        int callingUid = Binder.getCallingUid();
+        if (!isManagerOrShell(callingUid)) {
+            pw.println("Permission Denial: can't dump from uid " + callingUid);
+            return;
         }
+
+        packageInfoCache.dump(pw);
+        callerPermissionCache.dump(pw);
+        BinderSender.dump(pw);
+        binderDelivery.dump(pw);
+        asyncRemoteTransactions.dump(pw);
+        remoteResultCache.dump(pw);
+        getUserServiceManager().dump(pw);
     }
 
-    private static void sendBinderToClient(Binder binder, int userId) {
+    /**
+     * "userId:packageName" of packages that have a running process.
+     */
+    private static Set<String> getRunningPackages() {
+        Set<String> packages = new HashSet<>();
         try {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null || pi.requestedPermissions == null)
+            for (ActivityManager.RunningAppProcessInfo info : IActivityManagerUtils.getRunningAppProcesses()) {
+                if (info.pkgList == null) {
                     continue;
-
-                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    sendBinderToUserApp(binder, pi.packageName, userId);
+                }
+                int userId = UserHandleCompat.getUserId(info.uid);
+                for (String packageName : info.pkgList) {
+                    packages.add(userId + ":" + packageName);
                 }
             }
         } catch (Throwable tr) {
-            LOGGER.e("exception when call getInstalledPackages", tr);
+            LOGGER.w(tr, "getRunningAppProcesses");
         }
+        return packages;
     }
 
-    void sendBinderToManager() {
-        sendBinderToManger(this);
-    }
-
-    private static void sendBinderToManger(Binder binder) {
+    /**
+     * Send the binder to every app that requests the permission. Recently attached apps go first,
+     * then apps that are running, and the rest are staggered with jitter so that they don't all
+     * attach at the same moment.
+     */
+    void sendBinderToClient() {
+        List<Pair<String, Integer>> targets = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
         for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToManger(binder, userId);
-        }
-    }
-
-    static void sendBinderToManger(Binder binder, int userId) {
-        sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId);
-    }
-
-    static void sendBinderToUserApp(Binder binder, String packageName, int userId) {
-        sendBinderToUserApp(binder, packageName, userId, true);
-    }
+            try {
+                for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
+                    if (pi == null || pi.requestedPermissions == null)
+                        continue;
 
-    static void sendBinderToUserApp(Binder binder, String packageName, int userId, boolean retry) {
-        try {
-            DeviceIdleControllerApis.addPowerSaveTempWhitelistApp(packageName, 30 * 1000, userId,
-                    316/* PowerExemptionManager#REASON_SHELL */, "shell");
-            LOGGER.v("Add %d:%s to power save temp whitelist for 30s", userId, packageName);
-        } catch (Throwable tr) {
-            LOGGER.e(tr, "Failed to add %d:%s to power save temp whitelist", userId, packageName);
+                    if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+                        targets.add(new Pair<>(pi.packageName, userId));
+                        keys.add(userId + ":" + pi.packageName);
+                    }
+                }
+            } catch (Throwable tr) {
+                LOGGER.e("exception when call getInstalledPackages", tr);
+            }
         }
 
-        String name = packageName + ".shizuku";
-        IContentProvider provider = null;
-
-        /*
-         When we pass IBinder through binder (and really crossed process), the receive side (here is system_server process)
-         will always get a new instance of android.os.BinderProxy.
-
-         In the implementation of getContentProviderExternal and removeContentProviderExternal, received
-         IBinder is used as the key of a HashMap. But hashCode() is not implemented by BinderProxy, so
-         removeContentProviderExternal will never work.
-
-         Luckily, we can pass null. When token is token, count will be used.
-         */
-        IBinder token = null;
-
-        try {
-            provider = ActivityManagerApis.getContentProviderExternal(name, userId, token, name);
-            if (provider == null) {
-                LOGGER.e("provider is null %s %d", name, userId);
-                return;
+        Set<String> sent = new HashSet<>();
+        for (Pair<String, Integer> client : recentClients.get()) {
+            String key = client.second + ":" + client.first;
+            if (keys.contains(key) && sent.add(key)) {
+                sendBinderToUserApp(client.first, client.second);
             }
-            if (!provider.asBinder().pingBinder()) {
-                LOGGER.e("provider is dead %s %d", name, userId);
+        }
+        int recent = sent.size();
 
-                if (retry) {
-                    // For unknown reason, sometimes this could happens
-                    // Kill Shizuku app and try again could work
-                    ActivityManagerApis.forceStopPackageNoThrow(packageName, userId);
-                    LOGGER.e("kill %s in user %d and try again", packageName, userId);
-                    Thread.sleep(1000);
-                    sendBinderToUserApp(binder, packageName, userId, false);
-                }
-                return;
+        Set<String> running = getRunningPackages();
+        for (Pair<String, Integer> target : targets) {
+            String key = target.second + ":" + target.first;
+            if (running.contains(key) && sent.add(key)) {
+                sendBinderToUserApp(target.first, target.second);
             }
+        }
+        LOGGER.i("binder queued for %d recent and %d running clients", recent, sent.size() - recent);
 
-            if (!retry) {
-                LOGGER.e("retry works");
+        Random random = new Random();
+        long delay = 0;
+        for (Pair<String, Integer> target : targets) {
+            if (sent.contains(target.second + ":" + target.first)) {
+                continue;
             }
+            delay += CLIENT_DELIVERY_STAGGER;
+            binderDelivery.deliver(target.first, target.second, delay + random.nextInt(CLIENT_DELIVERY_JITTER));
+        }
+    }
 
-            Bundle extra = new Bundle();
-            extra.putParcelable("moe.shizuku.privileged.api.intent.extra.BINDER", new BinderContainer(binder));
+    void sendBinderToManager() {
+        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
+            sendBinderToManager(userId);
+        }
+    }
 
-            Bundle reply = IContentProviderUtils.callCompat(provider, null, name, "sendBinder", null, extra);
-            if (reply != null) {
-                LOGGER.i("send binder to user app %s in user %d", packageName, userId);
-            } else {
-                LOGGER.w("failed to send binder to user app %s in user %d", packageName, userId);
-            }
-        } catch (Throwable tr) {
-            LOGGER.e(tr, "failed send binder to user app %s in user %d", packageName, userId);
-        } finally {
-            if (provider != null) {
-                try {
-                    ActivityManagerApis.removeContentProviderExternal(name, token);
-                } catch (Throwable tr) {
-                    LOGGER.w(tr, "removeContentProviderExternal");
-                }
-            }
+    void sendBinderToManager(int userId) {
+        sendBinderToUserApp(MANAGER_APPLICATION_ID, userId);
+    }
+
+    void sendBinderToUserApp(String packageName, int userId) {
+        binderDelivery.deliver(packageName, userId);
+    }
+
+    /**
+     * Same as {@link #sendBinderToUserApp(String, int)}, but skipped if the process (or any process
+     * of the uid if {@code pid} is -1) has already attached and is alive.
+     */
+    void sendBinderToUserApp(String packageName, int uid, int pid) {
+        int userId = UserHandleCompat.getUserId(uid);
+        if (clientManager.isAttached(packageName, uid, pid)) {
+            LOGGER.v("%d:%s (uid=%d, pid=%d) is attached, skip", userId, packageName, uid, pid);
+            binderDelivery.skip(packageName, userId);
+            return;
         }
+        binderDelivery.deliver(packageName, userId);
     }
 
     // ------ Sui only ------
@@ -1,26 +1,70 @@
 package rikka.shizuku.server;
 
+import android.content.ComponentName;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
 import android.util.ArrayMap;
 
 import java.io.File;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import moe.shizuku.starter.ServiceStarter;
 import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.UserManagerApis;
+import rikka.shizuku.ShizukuApiConstants;
+import rikka.shizuku.server.ktx.HandlerKt;
 import rikka.shizuku.server.util.UserHandleCompat;
 
 public class ShizukuUserServiceManager extends UserServiceManager {
 
-    private final Map<UserServiceRecord, ApkChangedListener> apkChangedListeners = new ArrayMap<>();
-    private final Map<String, List<UserServiceRecord>> userServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
+    /**
+     * Meta-data of the client package to have its user services share one process. Services in
+     * a shared process must not exit the process when they are destroyed.
+     */
+    private static final String META_DATA_SHARED_PROCESS = "moe.shizuku.client.SHARED_USER_SERVICE_PROCESS";
+
+    private static final String HOST_PROCESS_NAME_SUFFIX = "user_service_host";
+
+    /**
+     * How long a service waits for a pooled host taken while starting before it is started in a
+     * process of its own.
+     */
+    private static final long CLAIMED_HOST_TIMEOUT = 3 * 1000;
+
+    private static final int MAX_HOST_THREADS = 4;
+
+    private final UserServiceRegistry registry = new UserServiceRegistry();
+
+    /**
+     * Host key to host and user service token to host, guarded by {@link #hosts}.
+     */
+    private final Map<String, UserServiceHost> hosts = new ArrayMap<>();
+    private final Map<String, UserServiceHost> hostsByToken = new ArrayMap<>();
+
+    private final UserServiceHostPool hostPool = new UserServiceHostPool();
+    private final BindLatency bindLatency = new BindLatency();
+    private final UserServiceKeepAlive keepAlive = new UserServiceKeepAlive();
+
+    /**
+     * Calls to hosts are synchronous and creating a service runs code of the client, so they
+     * don't run on the worker thread, where a stuck host would hold up everything else.
+     */
+    private final ThreadPoolExecutor hostExecutor = new ThreadPoolExecutor(
+            MAX_HOST_THREADS, MAX_HOST_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
 
     public ShizukuUserServiceManager() {
         super();
+        hostExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
@@ -32,10 +76,390 @@ public class ShizukuUserServiceManager extends UserServiceManager {
         if (use32Bits && new File("/system/bin/app_process32").exists()) {
             appProcess = "/system/bin/app_process32";
         }
+
+        ApplicationInfo ai = PackageManagerApis.getApplicationInfoNoThrow(packageName, PackageManager.GET_META_DATA, UserHandleCompat.getUserId(callingUid));
+        long keepAliveTimeout = UserServiceKeepAlive.getTimeout(ai);
+        if (keepAliveTimeout > 0) {
+            keepAlive.add(record, packageName, classname, callingUid, keepAliveTimeout);
+        }
+
+        boolean shared = ai != null && ai.metaData != null && ai.metaData.getBoolean(META_DATA_SHARED_PROCESS, false);
+        String hostKey = UserServiceHost.key(packageName, callingUid, use32Bits, debug);
+        UserServiceHost host;
+        synchronized (hosts) {
+            host = shared ? hosts.get(hostKey) : null;
+            if (host != null) {
+                bindLatency.start(token, BindLatency.SHARED);
+                host.tokens.add(token);
+                hostsByToken.put(token, host);
+
+                Runnable create = () -> createInHost(token, packageName, classname, callingUid, null);
+                if (host.binder != null) {
+                    hostExecutor.execute(create);
+                } else {
+                    host.pending.put(token, create);
+                }
+                LOGGER.i("service %s will be created in host %s", token, hostKey);
+                // Nothing to start
+                return ":";
+            }
+        }
+
+        host = debug ? null : hostPool.take(use32Bits);
+        if (host != null) {
+            String processName = packageName + ":" + (shared ? HOST_PROCESS_NAME_SUFFIX : processNameSuffix);
+            String poolToken = host.key;
+            synchronized (hosts) {
+                // A host of its own if the service doesn't share
+                host.key = shared ? hostKey : hostKey + ":" + token;
+                host.tokens.add(token);
+                hosts.put(host.key, host);
+                hostsByToken.put(token, host);
+            }
+            Runnable create = () -> createInHost(token, packageName, classname, callingUid, processName);
+            if (host.claimed) {
+                // Still starting, created once it attaches
+                bindLatency.start(token, BindLatency.STARTING);
+                synchronized (hosts) {
+                    if (host.binder != null) {
+                        hostExecutor.execute(create);
+                    } else {
+                        host.pending.put(token, create);
+                    }
+                }
+
+                UserServiceHost target = host;
+                String coldStartCmd = ServiceStarter.commandForUserService(
+                        appProcess,
+                        ShizukuService.getManagerApplicationInfo().sourceDir,
+                        token, packageName, classname, shared ? HOST_PROCESS_NAME_SUFFIX : processNameSuffix, callingUid, false, shared);
+                HandlerKt.getWorkerHandler().postDelayed(() -> hostExecutor.execute(
+                        () -> onClaimedHostTimeout(target, poolToken, token, shared, processName, coldStartCmd)), CLAIMED_HOST_TIMEOUT);
+            } else {
+                bindLatency.start(token, BindLatency.WARM);
+                linkHostToDeath(host);
+                hostExecutor.execute(create);
+            }
+            LOGGER.i("service %s will be created in pooled host %s", token, host.key);
+            return ":";
+        }
+
+        bindLatency.start(token, BindLatency.COLD);
+        UserServiceRegistry.Entry entry = registry.get(token);
+        if (entry != null) {
+            entry.processName = packageName + ":" + (shared ? HOST_PROCESS_NAME_SUFFIX : processNameSuffix);
+        }
+        if (!shared) {
+            return ServiceStarter.commandForUserService(
+                    appProcess,
+                    ShizukuService.getManagerApplicationInfo().sourceDir,
+                    token, packageName, classname, processNameSuffix, callingUid, debug);
+        }
+
+        synchronized (hosts) {
+            host = new UserServiceHost(hostKey, use32Bits);
+            host.tokens.add(token);
+            hosts.put(hostKey, host);
+            hostsByToken.put(token, host);
+        }
+
+        LOGGER.i("start host %s with service %s", hostKey, token);
         return ServiceStarter.commandForUserService(
                 appProcess,
                 ShizukuService.getManagerApplicationInfo().sourceDir,
-                token, packageName, classname, processNameSuffix, callingUid, debug);
+                token, packageName, classname, HOST_PROCESS_NAME_SUFFIX, callingUid, debug, true);
+    }
+
+    /**
+     * The pooled host taken for {@code token} while starting has not attached, it may have died
+     * before it could. Unless it has attached meanwhile, it is given up and {@code token} is
+     * started by itself, as the first service of a new host if it shares one.
+     */
+    private void onClaimedHostTimeout(UserServiceHost host, String poolToken, String token, boolean shared, String processName, String coldStartCmd) {
+        if (!hostPool.abandon(poolToken)) {
+            return;
+        }
+
+        List<String> tokens = new ArrayList<>();
+        synchronized (hosts) {
+            if (hostsByToken.get(token) != host) {
+                // Removed meanwhile
+                return;
+            }
+            LOGGER.w("pooled host %s not attached in %d ms, start service %s by itself", host.key, CLAIMED_HOST_TIMEOUT, token);
+
+            if (hosts.get(host.key) == host) {
+                hosts.remove(host.key);
+            }
+            host.pending.remove(token);
+            if (shared) {
+                UserServiceHost replacement = new UserServiceHost(host.key, host.use32Bits);
+                replacement.tokens.addAll(host.tokens);
+                replacement.pending.putAll(host.pending);
+                hosts.put(replacement.key, replacement);
+                for (String t : replacement.tokens) {
+                    hostsByToken.put(t, replacement);
+                }
+                tokens.addAll(replacement.tokens);
+            } else {
+                hostsByToken.remove(token);
+                tokens.add(token);
+            }
+            host.tokens.clear();
+            host.pending.clear();
+        }
+
+        UserServiceRegistry.Entry entry = registry.get(token);
+        if (entry != null) {
+            entry.processName = processName;
+        }
+        try {
+            UserServiceHostPool.exec(coldStartCmd);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "unable to start service %s", token);
+            for (String t : tokens) {
+                UserServiceRecord record = registry.getRecord(t);
+                if (record != null) {
+                    record.removeSelf();
+                }
+            }
+        }
+    }
+
+    private void createInHost(String token, String packageName, String classname, int uid, String processName) {
+        UserServiceHost host;
+        synchronized (hosts) {
+            host = hostsByToken.get(token);
+        }
+        if (host == null || host.binder == null) {
+            // Removed meanwhile
+            return;
+        }
+
+        IBinder service;
+        try {
+            service = host.createService(token, packageName, classname, uid, processName);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "unable to create service %s in host %s", token, host.key);
+            UserServiceRecord record = registry.getRecord(token);
+            if (record != null) {
+                record.removeSelf();
+            }
+            return;
+        }
+
+        boolean removed;
+        synchronized (hosts) {
+            removed = hostsByToken.get(token) != host;
+        }
+        if (removed) {
+            // removeFromHost may have reached the host before it stored the service
+            LOGGER.i("service %s was removed while being created, dropping it", token);
+            try {
+                host.removeService(token);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "removeService %s", token);
+            }
+            return;
+        }
+
+        Bundle options = new Bundle();
+        options.putString(ShizukuApiConstants.USER_SERVICE_ARG_TOKEN, token);
+        attachUserService(service, options);
+        onUserServiceAttached(token);
+    }
+
+    /**
+     * Called after a user service process has sent its binder.
+     */
+    public void onUserServiceAttached(String token) {
+        bindLatency.finish(token);
+    }
+
+    /**
+     * Called after a client has bound a user service, which may be a kept one.
+     */
+    public void onUserServiceAdded(Bundle options, int callingUid) {
+        ComponentName componentName = options.getParcelable(ShizukuApiConstants.USER_SERVICE_ARG_COMPONENT);
+        if (componentName == null) {
+            return;
+        }
+        boolean daemon = options.getBoolean(ShizukuApiConstants.USER_SERVICE_ARG_DAEMON, true);
+        keepAlive.onConnectionAdded(componentName.getPackageName(), componentName.getClassName(), callingUid, daemon);
+    }
+
+    /**
+     * @return if {@code token} is of a host in the pool rather than a user service
+     */
+    public boolean attachPooledHost(String token, IBinder binder) {
+        UserServiceHost host = hostPool.attach(token, binder);
+        if (host == null) {
+            return false;
+        }
+        if (host.claimed) {
+            attachHost(host, binder);
+        }
+        return true;
+    }
+
+    private void linkHostToDeath(UserServiceHost host) {
+        try {
+            host.binder.linkToDeath(() -> onHostDied(host), 0);
+        } catch (RemoteException e) {
+            onHostDied(host);
+        }
+    }
+
+    /**
+     * Called when the first service of a host has been attached, {@code binder} is the
+     * {@link moe.shizuku.starter.ServiceHost} of the process.
+     */
+    public void attachHost(String token, IBinder binder) {
+        UserServiceHost host;
+        synchronized (hosts) {
+            host = hostsByToken.get(token);
+        }
+        if (host == null) {
+            LOGGER.w("unexpected host from service %s", token);
+            return;
+        }
+        attachHost(host, binder);
+    }
+
+    private void attachHost(UserServiceHost host, IBinder binder) {
+        List<Runnable> pending;
+        synchronized (hosts) {
+            if (host.binder != null) {
+                LOGGER.w("host %s has already attached", host.key);
+                return;
+            }
+            host.binder = binder;
+            pending = new ArrayList<>(host.pending.values());
+            host.pending.clear();
+        }
+
+        linkHostToDeath(host);
+
+        hostExecutor.execute(() -> {
+            try {
+                host.pid = host.getPid();
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "getPid of host %s", host.key);
+            }
+        });
+        for (Runnable runnable : pending) {
+            hostExecutor.execute(runnable);
+        }
+        LOGGER.i("host %s attached", host.key);
+    }
+
+    private void onHostDied(UserServiceHost host) {
+        LOGGER.i("host %s died", host.key);
+
+        List<String> pendingTokens = new ArrayList<>();
+        synchronized (hosts) {
+            if (hosts.get(host.key) == host) {
+                hosts.remove(host.key);
+            }
+            for (String token : host.tokens) {
+                hostsByToken.remove(token);
+                pendingTokens.add(token);
+            }
+            host.tokens.clear();
+            host.pending.clear();
+        }
+
+        // Attached services are removed through their own binder death
+        for (String token : pendingTokens) {
+            UserServiceRecord record = registry.getRecord(token);
+            if (record != null && record.service == null) {
+                record.removeSelf();
+            }
+        }
+    }
+
+    private void removeFromHost(String token) {
+        UserServiceHost host;
+        boolean empty;
+        synchronized (hosts) {
+            host = hostsByToken.remove(token);
+            if (host == null) {
+                return;
+            }
+            host.tokens.remove(token);
+            empty = host.tokens.isEmpty();
+            if (empty && hosts.get(host.key) == host) {
+                hosts.remove(host.key);
+            }
+        }
+
+        IBinder binder = host.binder;
+        if (binder == null) {
+            return;
+        }
+        hostExecutor.execute(() -> {
+            try {
+                if (empty) {
+                    LOGGER.i("host %s has no service, exiting", host.key);
+                    host.exit();
+                } else {
+                    host.removeService(token);
+                }
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "removeFromHost %s", token);
+            }
+        });
+    }
+
+    /**
+     * Remove the user services bound by {@code uid}, whether the client is still running or not.
+     */
+    public void removeUserServicesForUid(int uid) {
+        for (UserServiceRecord record : registry.getRecordsForUid(uid)) {
+            LOGGER.v("remove record %s of uid %d", record.token, uid);
+            record.removeSelf();
+        }
+    }
+
+    @Override
+    public void removeUserServicesForPackage(String packageName) {
+        for (UserServiceRecord record : registry.getRecordsForPackage(packageName)) {
+            LOGGER.v("remove record %s of package %s", record.token, packageName);
+            record.removeSelf();
+        }
+    }
+
+    private Map<String, Integer> getHostPids() {
+        Map<String, Integer> pids = new ArrayMap<>();
+        synchronized (hosts) {
+            for (Map.Entry<String, UserServiceHost> entry : hostsByToken.entrySet()) {
+                pids.put(entry.getKey(), entry.getValue().pid);
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * @return live user services and their memory by client
+     */
+    public List<UserServiceRegistry.ClientUsage> getClientUsages() {
+        return registry.snapshot(getHostPids());
+    }
+
+    public void dump(PrintWriter pw) {
+        List<UserServiceHost> list;
+        synchronized (hosts) {
+            list = new ArrayList<>(hosts.values());
+        }
+        registry.dump(pw, getHostPids());
+        pw.println("UserServiceHosts:");
+        for (UserServiceHost host : list) {
+            host.dump(pw);
+        }
+        pw.printf("  active=%d, queued=%d%n", hostExecutor.getActiveCount(), hostExecutor.getQueue().size());
+        hostPool.dump(pw);
+        bindLatency.dump(pw);
+        keepAlive.dump(pw);
     }
 
     @Override
@@ -46,6 +470,11 @@ public class ShizukuUserServiceManager extends UserServiceManager {
         ApkChangedListener listener = new ApkChangedListener() {
             @Override
             public void onApkChanged() {
+                if (registry.get(record.token) == null) {
+                    // Removed with the other services of the package
+                    return;
+                }
+
                 String newSourceDir = null;
 
                 for (int userId : UserManagerApis.getUserIdsNoThrow()) {
@@ -56,28 +485,34 @@ public class ShizukuUserServiceManager extends UserServiceManager {
                     }
                 }
 
-                if (newSourceDir == null) {
-                    LOGGER.v("remove record %s because package %s has been removed", record.token, packageName);
+                if (keepAlive.contains(record)) {
+                    // Don't let a later bind reattach to a process running the old code
+                    LOGGER.v("remove kept record %s because package %s has changed", record.token, packageName);
                     record.removeSelf();
+                } else if (newSourceDir == null) {
+                    LOGGER.v("remove records of package %s because it has been removed", packageName);
+                    removeUserServicesForPackage(packageName);
                 } else {
                     LOGGER.v("update apk listener for record %s since package %s is upgrading", record.token, packageName);
-                    ApkChangedObservers.stop(this);
-                    ApkChangedObservers.start(newSourceDir, this);
+                    ApkChangedObservers.move(this, newSourceDir);
                 }
             }
         };
 
+        UserServiceRegistry.Entry entry = registry.add(record, packageName, packageInfo.applicationInfo.uid);
+        entry.apkChangedListener = listener;
         ApkChangedObservers.start(packageInfo.applicationInfo.sourceDir, listener);
-        apkChangedListeners.put(record, listener);
     }
 
     @Override
     public void onUserServiceRecordRemoved(UserServiceRecord record) {
         super.onUserServiceRecordRemoved(record);
-        ApkChangedListener listener = apkChangedListeners.get(record);
-        if (listener != null) {
-            ApkChangedObservers.stop(listener);
-            apkChangedListeners.remove(record);
+        UserServiceRegistry.Entry entry = registry.remove(record.token);
+        if (entry != null && entry.apkChangedListener != null) {
+            ApkChangedObservers.stop(entry.apkChangedListener);
         }
+        keepAlive.remove(record);
+        bindLatency.cancel(record.token);
+        removeFromHost(record.token);
     }
 }
@@ -0,0 +1,165 @@
+package rikka.shizuku.server;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Set;
+
+import moe.shizuku.starter.ServiceHost;
+
+/**
+ * A process started by {@link moe.shizuku.starter.ServiceStarter} that hosts every user service of
+ * a (package, uid, 32-bit, debug) that opted in to sharing a process, a single user service
+ * started in a pre-warmed host, or nothing yet if it's idle in {@link UserServiceHostPool}.
+ */
+public class UserServiceHost {
+
+    /**
+     * Changed when a pooled host is taken.
+     */
+    String key;
+
+    final boolean use32Bits;
+
+    /**
+     * Tokens of the user services in this host, including those not created yet.
+     */
+    final Set<String> tokens = new ArraySet<>();
+
+    /**
+     * Token to creations waiting for the host to attach.
+     */
+    final Map<String, Runnable> pending = new ArrayMap<>();
+
+    IBinder binder;
+    int pid = -1;
+
+    /**
+     * If the host was taken from the pool before it attached.
+     */
+    boolean claimed;
+
+    /**
+     * When the host was started by the pool.
+     */
+    long startTime;
+
+    /**
+     * When the host became idle in the pool.
+     */
+    long idleSince;
+
+    UserServiceHost(String key, boolean use32Bits) {
+        this.key = key;
+        this.use32Bits = use32Bits;
+    }
+
+    static String key(String packageName, int uid, boolean use32Bits, boolean debug) {
+        return uid + ":" + packageName + (use32Bits ? ":32" : "") + (debug ? ":debug" : "");
+    }
+
+    /**
+     * @param processName name for the process if this is its first service, or null
+     */
+    IBinder createService(String token, String packageName, String classname, int uid, String processName) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ServiceHost.DESCRIPTOR);
+            data.writeString(token);
+            data.writeString(packageName);
+            data.writeString(classname);
+            data.writeInt(uid);
+            data.writeString(processName);
+            binder.transact(ServiceHost.TRANSACTION_createService, data, reply, 0);
+            reply.readException();
+            return reply.readStrongBinder();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    int getPid() throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ServiceHost.DESCRIPTOR);
+            binder.transact(ServiceHost.TRANSACTION_getPid, data, reply, 0);
+            reply.readException();
+            return reply.readInt();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    void removeService(String token) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ServiceHost.DESCRIPTOR);
+            data.writeString(token);
+            binder.transact(ServiceHost.TRANSACTION_removeService, data, reply, 0);
+            reply.readException();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    void exit() throws RemoteException {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ServiceHost.DESCRIPTOR);
+            binder.transact(ServiceHost.TRANSACTION_exit, data, null, IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    long getPss() {
+        return getPss(pid);
+    }
+
+    /**
+     * @return PSS of a process in kB, or -1
+     */
+    static long getPss(int pid) {
+        return readProcKb(pid, "smaps_rollup", "Pss:");
+    }
+
+    /**
+     * @return value of {@code field} in kB from a /proc file of the process, or -1
+     */
+    private static long readProcKb(int pid, String file, String field) {
+        if (pid <= 0) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/" + file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(field)) {
+                    String[] parts = line.substring(field.length()).trim().split("\\s+");
+                    return Long.parseLong(parts[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.printf("  %s: pid=%d, services=%d, pending=%d, rss=%d kB, pss=%d kB%n",
+                key, pid, tokens.size(), pending.size(),
+                readProcKb(pid, "status", "VmRSS:"), getPss());
+    }
+}
@@ -0,0 +1,347 @@
+package rikka.shizuku.server;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import moe.shizuku.starter.ServiceStarter;
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Idle {@link UserServiceHost}s started ahead of time, so that binding a user service only
+ * costs creating the service in one of them instead of starting a process.
+ * <p>
+ * A bind that finds no idle host takes one that is still starting, if any, rather than starting
+ * a process of its own. The pool of an ABI is filled after the first bind that needs it. Hosts idle for too long, or
+ * over the memory cap, are stopped and the pool is filled again on the next bind. The pool is off
+ * unless its size is set with the {@code debug.shizuku.user_service_pool.size} property, the cap
+ * can be changed with {@code debug.shizuku.user_service_pool.max_pss} (kB).
+ * <p>
+ * The starting command is run in the background, so a host that dies before attaching goes
+ * unnoticed; hosts not attached within {@link #START_TIMEOUT} are dropped, and exited if they
+ * attach later anyway.
+ */
+public class UserServiceHostPool {
+
+    private static final Logger LOGGER = new Logger("UserServiceHostPool");
+
+    private static final String PROPERTY_SIZE = "debug.shizuku.user_service_pool.size";
+    private static final String PROPERTY_MAX_PSS = "debug.shizuku.user_service_pool.max_pss";
+
+    private static final int DEFAULT_SIZE = 0;
+    private static final long DEFAULT_MAX_PSS = 128 * 1024;
+    private static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+    private static final long TRIM_INTERVAL = 60 * 1000;
+    private static final long START_TIMEOUT = 10 * 1000;
+
+    private static final String PROCESS_NAME = "shizuku:user_service_pool";
+
+    /**
+     * Token to hosts started but not attached yet.
+     */
+    private final Map<String, UserServiceHost> starting = new ArrayMap<>();
+    private final List<UserServiceHost> idle = new ArrayList<>();
+
+    /**
+     * Token to hosts taken while starting, they go to the taker once attached.
+     */
+    private final Map<String, UserServiceHost> claimed = new ArrayMap<>();
+
+    /**
+     * Tokens of hosts dropped before they attached, they are exited if they attach.
+     */
+    private final Set<String> abandoned = new ArraySet<>();
+
+    private final Runnable trimRunner = this::trim;
+
+    private int nextId;
+    private int taken;
+    private int takenStarting;
+    private int missed;
+    private int evicted;
+    private int timedOut;
+
+    private static int getSize() {
+        return Math.max(SystemProperties.getInt(PROPERTY_SIZE, DEFAULT_SIZE), 0);
+    }
+
+    private static long getMaxPss() {
+        return SystemProperties.getLong(PROPERTY_MAX_PSS, DEFAULT_MAX_PSS);
+    }
+
+    /**
+     * @return an attached idle host, a starting host (not attached, {@link UserServiceHost#claimed}
+     * is set), or null. Either way, the pool of the ABI is filled again.
+     */
+    @Nullable
+    public UserServiceHost take(boolean use32Bits) {
+        if (getSize() == 0) {
+            return null;
+        }
+
+        UserServiceHost host = null;
+        synchronized (this) {
+            dropStaleLocked(SystemClock.elapsedRealtime());
+            for (Iterator<UserServiceHost> it = idle.iterator(); it.hasNext(); ) {
+                UserServiceHost h = it.next();
+                if (h.use32Bits == use32Bits) {
+                    it.remove();
+                    host = h;
+                    break;
+                }
+            }
+            if (host == null) {
+                for (Iterator<Map.Entry<String, UserServiceHost>> it = starting.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, UserServiceHost> entry = it.next();
+                    if (entry.getValue().use32Bits == use32Bits) {
+                        it.remove();
+                        host = entry.getValue();
+                        host.claimed = true;
+                        claimed.put(entry.getKey(), host);
+                        takenStarting++;
+                        break;
+                    }
+                }
+            } else {
+                taken++;
+            }
+            if (host == null) {
+                missed++;
+            }
+        }
+
+        HandlerKt.getWorkerHandler().post(() -> fill(use32Bits));
+        return host;
+    }
+
+    private void fill(boolean use32Bits) {
+        int size = getSize();
+        List<String> tokens = new ArrayList<>();
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            dropStaleLocked(now);
+            int count = 0;
+            for (UserServiceHost host : idle) {
+                if (host.use32Bits == use32Bits) count++;
+            }
+            for (UserServiceHost host : starting.values()) {
+                if (host.use32Bits == use32Bits) count++;
+            }
+            for (; count < size; count++) {
+                String token = "pool-" + (nextId++);
+                UserServiceHost host = new UserServiceHost(token, use32Bits);
+                host.startTime = now;
+                starting.put(token, host);
+                tokens.add(token);
+            }
+        }
+
+        for (String token : tokens) {
+            start(token, use32Bits);
+        }
+
+        HandlerKt.getWorkerHandler().removeCallbacks(trimRunner);
+        HandlerKt.getWorkerHandler().postDelayed(trimRunner, TRIM_INTERVAL);
+    }
+
+    private void start(String token, boolean use32Bits) {
+        String appProcess = "/system/bin/app_process";
+        if (use32Bits && new File("/system/bin/app_process32").exists()) {
+            appProcess = "/system/bin/app_process32";
+        }
+        String cmd = ServiceStarter.commandForServiceHost(
+                appProcess, ShizukuService.getManagerApplicationInfo().sourceDir, token, PROCESS_NAME);
+
+        LOGGER.v("starting pooled host %s", token);
+        try {
+            exec(cmd);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "unable to start pooled host %s", token);
+            synchronized (this) {
+                starting.remove(token);
+                // A claimed host stays claimed, so that its taker can abandon it and start the
+                // service by itself once the host has not attached in time
+            }
+        }
+    }
+
+    /**
+     * Runs {@code cmd} with sh, which returns once the process has been started in the background.
+     */
+    static void exec(String cmd) throws IOException, InterruptedException {
+        Process process = Runtime.getRuntime().exec("sh");
+        try (OutputStream os = process.getOutputStream()) {
+            os.write(cmd.getBytes());
+            os.flush();
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException("sh exited with " + exitCode);
+        }
+    }
+
+    private void dropStaleLocked(long now) {
+        for (Iterator<Map.Entry<String, UserServiceHost>> it = starting.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, UserServiceHost> entry = it.next();
+            if (now - entry.getValue().startTime > START_TIMEOUT) {
+                LOGGER.w("pooled host %s not attached in %d ms, dropped", entry.getKey(), START_TIMEOUT);
+                it.remove();
+                abandoned.add(entry.getKey());
+                timedOut++;
+            }
+        }
+    }
+
+    /**
+     * Called by the taker of a starting host that has not attached in time.
+     *
+     * @return false if the host has attached (or died) meanwhile
+     */
+    public synchronized boolean abandon(String token) {
+        if (claimed.remove(token) == null) {
+            return false;
+        }
+        abandoned.add(token);
+        timedOut++;
+        return true;
+    }
+
+    /**
+     * @return the host if {@code token} is of a pooled host, or null. A host that has been taken
+     * while starting is returned as is, attaching it is up to the taker. A host that has been
+     * abandoned is exited and returned as not claimed.
+     */
+    @Nullable
+    public UserServiceHost attach(String token, IBinder binder) {
+        UserServiceHost host;
+        synchronized (this) {
+            if (abandoned.remove(token)) {
+                host = new UserServiceHost(token, false);
+            } else {
+                host = null;
+            }
+        }
+        if (host != null) {
+            LOGGER.i("pooled host %s attached after it was dropped, exiting", token);
+            host.binder = binder;
+            try {
+                host.exit();
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "exit");
+            }
+            return host;
+        }
+
+        synchronized (this) {
+            host = claimed.remove(token);
+            if (host != null) {
+                LOGGER.i("pooled host %s attached, taken while starting", token);
+                return host;
+            }
+            host = starting.remove(token);
+            if (host == null) {
+                return null;
+            }
+            host.binder = binder;
+            host.idleSince = SystemClock.elapsedRealtime();
+            idle.add(host);
+        }
+
+        try {
+            binder.linkToDeath(() -> {
+                synchronized (this) {
+                    idle.remove(host);
+                }
+            }, 0);
+            host.pid = host.getPid();
+        } catch (RemoteException e) {
+            LOGGER.w(e, "pooled host %s", token);
+            synchronized (this) {
+                idle.remove(host);
+            }
+        }
+        LOGGER.i("pooled host %s attached, pid=%d", token, host.pid);
+        return host;
+    }
+
+    private void trim() {
+        long now = SystemClock.elapsedRealtime();
+        long maxPss = getMaxPss();
+        int size = getSize();
+        List<UserServiceHost> toStop = new ArrayList<>();
+        boolean hasIdle;
+
+        // Reading /proc is slow, so it's not done while take() could be waiting for the lock
+        List<UserServiceHost> hosts;
+        synchronized (this) {
+            hosts = new ArrayList<>(idle);
+        }
+        Map<UserServiceHost, Long> psses = new ArrayMap<>(hosts.size());
+        for (UserServiceHost host : hosts) {
+            psses.put(host, Math.max(host.getPss(), 0));
+        }
+
+        synchronized (this) {
+            dropStaleLocked(now);
+            long totalPss = 0;
+            int[] kept = new int[2];
+            for (Iterator<UserServiceHost> it = idle.iterator(); it.hasNext(); ) {
+                UserServiceHost host = it.next();
+                int abi = host.use32Bits ? 1 : 0;
+                Long pssOrNull = psses.get(host);
+                long pss = pssOrNull != null ? pssOrNull : 0;
+                if (now - host.idleSince > IDLE_TIMEOUT || kept[abi] >= size || totalPss + pss > maxPss) {
+                    it.remove();
+                    toStop.add(host);
+                    evicted++;
+                    continue;
+                }
+                kept[abi]++;
+                totalPss += pss;
+            }
+            hasIdle = !idle.isEmpty();
+        }
+
+        for (UserServiceHost host : toStop) {
+            LOGGER.i("stop pooled host %s", host.key);
+            try {
+                host.exit();
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "exit");
+            }
+        }
+
+        if (hasIdle) {
+            HandlerKt.getWorkerHandler().postDelayed(trimRunner, TRIM_INTERVAL);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        List<UserServiceHost> hosts;
+        pw.println("UserServiceHostPool:");
+        synchronized (this) {
+            pw.printf("  size=%d, maxPss=%d kB, idle=%d, starting=%d, claimed=%d, taken=%d, takenStarting=%d, missed=%d, evicted=%d, timedOut=%d%n",
+                    getSize(), getMaxPss(), idle.size(), starting.size(), claimed.size(), taken, takenStarting, missed, evicted, timedOut);
+            hosts = new ArrayList<>(idle);
+        }
+        for (UserServiceHost host : hosts) {
+            host.dump(pw);
+        }
+    }
+}
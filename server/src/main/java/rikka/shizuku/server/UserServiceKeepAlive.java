@@ -0,0 +1,166 @@
+package rikka.shizuku.server;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Keeps user services that are not daemons running for a while after their last connection is
+ * gone, so that a client that restarts and binds the same service (same class and version code)
+ * gets the running one instead of a new process.
+ * <p>
+ * Clients opt in with the {@code moe.shizuku.client.USER_SERVICE_KEEP_ALIVE} meta-data, the
+ * number of seconds to keep an idle service. Kept services are marked as daemons so that the
+ * death of their connections doesn't remove them, and are removed here once idle for too long.
+ */
+public class UserServiceKeepAlive {
+
+    private static final Logger LOGGER = new Logger("UserServiceKeepAlive");
+
+    private static final String META_DATA_KEEP_ALIVE = "moe.shizuku.client.USER_SERVICE_KEEP_ALIVE";
+
+    private static final long MAX_KEEP_ALIVE = 60 * 60 * 1000;
+    private static final long CHECK_INTERVAL = 30 * 1000;
+
+    private static class Entry {
+
+        final UserServiceRecord record;
+        final String packageName;
+        final String classname;
+        final int uid;
+        final long timeout;
+
+        /**
+         * If the client asked for a daemon, which is never removed here.
+         */
+        boolean daemon;
+
+        long idleSince;
+
+        Entry(UserServiceRecord record, String packageName, String classname, int uid, long timeout, boolean daemon) {
+            this.record = record;
+            this.packageName = packageName;
+            this.classname = classname;
+            this.uid = uid;
+            this.timeout = timeout;
+            this.daemon = daemon;
+        }
+    }
+
+    private final Map<UserServiceRecord, Entry> entries = new ArrayMap<>();
+
+    private final Runnable checkRunner = this::check;
+
+    private int reattached;
+    private int expired;
+
+    /**
+     * @return time in ms to keep an idle service of the package, or 0
+     */
+    public static long getTimeout(ApplicationInfo ai) {
+        if (ai == null || ai.metaData == null) {
+            return 0;
+        }
+        long timeout = ai.metaData.getInt(META_DATA_KEEP_ALIVE, 0) * 1000L;
+        return Math.min(Math.max(timeout, 0), MAX_KEEP_ALIVE);
+    }
+
+    /**
+     * Called when the process of the service is about to be started.
+     */
+    public void add(UserServiceRecord record, String packageName, String classname, int uid, long timeout) {
+        synchronized (this) {
+            entries.put(record, new Entry(record, packageName, classname, uid, timeout, record.daemon));
+        }
+        record.setDaemon(true);
+        LOGGER.v("keep service %s for %d ms after its connections are gone", record.token, timeout);
+        scheduleCheck();
+    }
+
+    public synchronized void remove(UserServiceRecord record) {
+        entries.remove(record);
+    }
+
+    public synchronized boolean contains(UserServiceRecord record) {
+        return entries.containsKey(record);
+    }
+
+    /**
+     * Called after a connection to a service has been added, the client may have found the kept
+     * service and changed its daemon flag.
+     */
+    public void onConnectionAdded(String packageName, String classname, int uid, boolean daemon) {
+        List<Entry> list = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (entry.uid == uid && entry.packageName.equals(packageName) && entry.classname.equals(classname)) {
+                    entry.daemon = daemon;
+                    if (entry.idleSince != 0) {
+                        entry.idleSince = 0;
+                        reattached++;
+                    }
+                    list.add(entry);
+                }
+            }
+        }
+
+        for (Entry entry : list) {
+            entry.record.setDaemon(true);
+            LOGGER.v("connection added to kept service %s", entry.record.token);
+        }
+    }
+
+    private void scheduleCheck() {
+        HandlerKt.getWorkerHandler().removeCallbacks(checkRunner);
+        HandlerKt.getWorkerHandler().postDelayed(checkRunner, CHECK_INTERVAL);
+    }
+
+    private void check() {
+        long now = SystemClock.elapsedRealtime();
+        List<UserServiceRecord> toRemove = new ArrayList<>();
+        boolean hasEntries;
+
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (entry.daemon || entry.record.callbacks.getRegisteredCallbackCount() > 0) {
+                    entry.idleSince = 0;
+                } else if (entry.idleSince == 0) {
+                    LOGGER.v("service %s has no connection, kept for %d ms", entry.record.token, entry.timeout);
+                    entry.idleSince = now;
+                } else if (now - entry.idleSince >= entry.timeout) {
+                    toRemove.add(entry.record);
+                    expired++;
+                }
+            }
+            hasEntries = !entries.isEmpty();
+        }
+
+        for (UserServiceRecord record : toRemove) {
+            LOGGER.i("remove service %s since it has been idle for too long", record.token);
+            record.removeSelf();
+        }
+
+        if (hasEntries) {
+            scheduleCheck();
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        long now = SystemClock.elapsedRealtime();
+        pw.println("UserServiceKeepAlive:");
+        pw.printf("  kept=%d, reattached=%d, expired=%d%n", entries.size(), reattached, expired);
+        for (Entry entry : entries.values()) {
+            pw.printf("  %s: %s/%s, uid=%d, daemon=%s, idle=%d ms, timeout=%d ms%n",
+                    entry.record.token, entry.packageName, entry.classname, entry.uid, entry.daemon,
+                    entry.idleSince != 0 ? now - entry.idleSince : 0, entry.timeout);
+        }
+    }
+}
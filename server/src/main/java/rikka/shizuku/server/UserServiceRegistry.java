@@ -0,0 +1,228 @@
+package rikka.shizuku.server;
+
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * User service records by token, by uid of the client and by package, so that tearing down the
+ * services of a uid or a package only touches those services. Lookups by token don't lock, the
+ * other indexes are guarded by this.
+ */
+public class UserServiceRegistry {
+
+    public static class Entry {
+
+        public final UserServiceRecord record;
+        public final String packageName;
+        public final int uid;
+
+        /**
+         * Known once the process is about to be started.
+         */
+        volatile String processName;
+
+        volatile ApkChangedListener apkChangedListener;
+
+        Entry(UserServiceRecord record, String packageName, int uid) {
+            this.record = record;
+            this.packageName = packageName;
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * Live services and their memory of a client.
+     */
+    public static class ClientUsage {
+
+        public final int uid;
+        public final String packageName;
+        public int services;
+
+        /**
+         * Of the processes running the services, a shared process is counted once.
+         */
+        public long pss;
+
+        ClientUsage(int uid, String packageName) {
+            this.uid = uid;
+            this.packageName = packageName;
+        }
+    }
+
+    private final Map<String, Entry> byToken = new ConcurrentHashMap<>();
+    private final SparseArray<Set<Entry>> byUid = new SparseArray<>();
+    private final Map<String, Set<Entry>> byPackage = new ArrayMap<>();
+
+    public Entry add(UserServiceRecord record, String packageName, int uid) {
+        Entry entry = new Entry(record, packageName, uid);
+        synchronized (this) {
+            byToken.put(record.token, entry);
+
+            Set<Entry> set = byUid.get(uid);
+            if (set == null) {
+                set = new ArraySet<>();
+                byUid.put(uid, set);
+            }
+            set.add(entry);
+
+            set = byPackage.get(packageName);
+            if (set == null) {
+                set = new ArraySet<>();
+                byPackage.put(packageName, set);
+            }
+            set.add(entry);
+        }
+        return entry;
+    }
+
+    @Nullable
+    public synchronized Entry remove(String token) {
+        Entry entry = byToken.remove(token);
+        if (entry == null) {
+            return null;
+        }
+
+        Set<Entry> set = byUid.get(entry.uid);
+        if (set != null && set.remove(entry) && set.isEmpty()) {
+            byUid.remove(entry.uid);
+        }
+        set = byPackage.get(entry.packageName);
+        if (set != null && set.remove(entry) && set.isEmpty()) {
+            byPackage.remove(entry.packageName);
+        }
+        return entry;
+    }
+
+    @Nullable
+    public Entry get(String token) {
+        return byToken.get(token);
+    }
+
+    @Nullable
+    public UserServiceRecord getRecord(String token) {
+        Entry entry = byToken.get(token);
+        return entry != null ? entry.record : null;
+    }
+
+    @NonNull
+    public synchronized List<UserServiceRecord> getRecordsForUid(int uid) {
+        return records(byUid.get(uid));
+    }
+
+    @NonNull
+    public synchronized List<UserServiceRecord> getRecordsForPackage(String packageName) {
+        return records(byPackage.get(packageName));
+    }
+
+    private static List<UserServiceRecord> records(@Nullable Set<Entry> entries) {
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        List<UserServiceRecord> list = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            list.add(entry.record);
+        }
+        return list;
+    }
+
+    public int size() {
+        return byToken.size();
+    }
+
+    /**
+     * @param hostPids token to the pid of the host running it, for services in a host
+     */
+    @NonNull
+    public List<ClientUsage> snapshot(Map<String, Integer> hostPids) {
+        Map<String, Integer> pids = null;
+        Map<String, ClientUsage> usages = new ArrayMap<>();
+        Map<String, Set<Integer>> counted = new ArrayMap<>();
+
+        for (Entry entry : byToken.values()) {
+            String key = entry.uid + ":" + entry.packageName;
+            ClientUsage usage = usages.get(key);
+            if (usage == null) {
+                usage = new ClientUsage(entry.uid, entry.packageName);
+                usages.put(key, usage);
+                counted.put(key, new ArraySet<>());
+            }
+            usage.services++;
+
+            Integer pid = hostPids.get(entry.record.token);
+            if (pid == null && entry.processName != null) {
+                if (pids == null) {
+                    pids = findOwnProcesses();
+                }
+                pid = pids.get(entry.processName);
+            }
+            if (pid != null && pid > 0 && counted.get(key).add(pid)) {
+                usage.pss += Math.max(UserServiceHost.getPss(pid), 0);
+            }
+        }
+        return new ArrayList<>(usages.values());
+    }
+
+    /**
+     * @return process name to pid of the processes of the server's uid
+     */
+    private static Map<String, Integer> findOwnProcesses() {
+        Map<String, Integer> map = new ArrayMap<>();
+        File[] files = new File("/proc").listFiles();
+        if (files == null) {
+            return map;
+        }
+
+        int myUid = Process.myUid();
+        byte[] buffer = new byte[256];
+        for (File file : files) {
+            int pid;
+            try {
+                pid = Integer.parseInt(file.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (Process.getUidForPid(pid) != myUid) {
+                continue;
+            }
+            try (FileInputStream in = new FileInputStream(new File(file, "cmdline"))) {
+                int length = in.read(buffer);
+                int end = 0;
+                while (end < length && buffer[end] != 0) {
+                    end++;
+                }
+                if (end > 0) {
+                    map.put(new String(buffer, 0, end), pid);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+        return map;
+    }
+
+    public void dump(PrintWriter pw, Map<String, Integer> hostPids) {
+        pw.println("UserServiceRegistry:");
+        synchronized (this) {
+            pw.printf("  records=%d, uids=%d, packages=%d%n", byToken.size(), byUid.size(), byPackage.size());
+        }
+        for (ClientUsage usage : snapshot(hostPids)) {
+            pw.printf("  %d:%s: services=%d, pss=%d kB%n", usage.uid, usage.packageName, usage.services, usage.pss);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package rikka.shizuku.server.api;
+
+import android.app.ActivityManager;
+import android.app.IActivityManager;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+public class IActivityManagerUtils {
+
+    private static IActivityManager getActivityManager() {
+        return IActivityManager.Stub.asInterface(ServiceManager.getService("activity"));
+    }
+
+    /**
+     * Register {@code receiver} without an app, broadcasts are received as the calling uid.
+     */
+    @Nullable
+    public static Intent registerReceiverCompat(@NonNull IIntentReceiver receiver, @NonNull IntentFilter filter, int userId) throws RemoteException {
+        IActivityManager am = getActivityManager();
+        Intent result;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            result = am.registerReceiverWithFeature(null, null, null, null, receiver, filter, null, userId, 0);
+        } else if (Build.VERSION.SDK_INT >= 30) {
+            result = am.registerReceiverWithFeature(null, null, null, receiver, filter, null, userId, 0);
+        } else if (Build.VERSION.SDK_INT >= 26) {
+            result = am.registerReceiver(null, null, receiver, filter, null, userId, 0);
+        } else {
+            result = am.registerReceiver(null, null, receiver, filter, null, userId);
+        }
+        return result;
+    }
+
+    /**
+     * Processes of every app and user, the server's uid is allowed to see them all.
+     */
+    @NonNull
+    public static List<ActivityManager.RunningAppProcessInfo> getRunningAppProcesses() throws RemoteException {
+        List<ActivityManager.RunningAppProcessInfo> list = getActivityManager().getRunningAppProcesses();
+        return list != null ? list : Collections.emptyList();
+    }
+}
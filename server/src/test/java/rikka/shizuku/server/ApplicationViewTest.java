@@ -0,0 +1,189 @@
+package rikka.shizuku.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApplicationViewTest {
+
+    private static class Page {
+
+        long epoch;
+        long generation;
+        boolean full;
+        int total;
+        final List<String> packages = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+    }
+
+    private static PackageInfo packageInfo(String packageName, int uid, int versionCode) {
+        PackageInfo pi = new PackageInfo();
+        pi.packageName = packageName;
+        pi.versionCode = versionCode;
+        pi.applicationInfo = new ApplicationInfo();
+        pi.applicationInfo.packageName = packageName;
+        pi.applicationInfo.uid = uid;
+        pi.applicationInfo.sourceDir = "/data/app/" + packageName + "/base.apk";
+        return pi;
+    }
+
+    private static Page fetch(ApplicationView view, long sinceEpoch, long sinceGeneration, int userId, int offset, int limit) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            view.write(sinceEpoch, sinceGeneration, userId, offset, limit, parcel);
+            parcel.setDataPosition(0);
+
+            Page page = new Page();
+            page.epoch = parcel.readLong();
+            page.generation = parcel.readLong();
+            page.full = parcel.readInt() == 1;
+            page.total = parcel.readInt();
+            int count = parcel.readInt();
+            for (int i = 0; i < count; i++) {
+                page.packages.add(parcel.readString());
+                parcel.readInt(); // uid
+                parcel.readInt(); // flags
+                parcel.readLong(); // version code
+                parcel.readInt(); // descriptor flags
+                parcel.readString(); // source dir
+                parcel.readString(); // public source dir
+                parcel.createStringArray(); // split source dirs
+                parcel.readInt(); // label res
+                parcel.readInt(); // icon
+                parcel.readString(); // label
+            }
+            int removed = parcel.readInt();
+            for (int i = 0; i < removed; i++) {
+                page.removed.add(parcel.readString());
+                parcel.readInt(); // uid
+            }
+            return page;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Page fetchAll(ApplicationView view) {
+        return fetch(view, 0, 0, -1, 0, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void unknownEpochGetsFullList() {
+        ApplicationView view = new ApplicationView();
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1), packageInfo("b", 10002, 1)));
+
+        Page page = fetchAll(view);
+        assertTrue(page.full);
+        assertEquals(1, page.generation);
+        assertEquals(2, page.total);
+        assertEquals(Arrays.asList("a", "b"), page.packages);
+
+        assertTrue(fetch(view, page.epoch + 1, page.generation, -1, 0, Integer.MAX_VALUE).full);
+        // From a later generation than the server has, e.g. of a server that is gone
+        assertTrue(fetch(view, page.epoch, page.generation + 1, -1, 0, Integer.MAX_VALUE).full);
+    }
+
+    @Test
+    public void deltaHasOnlyChangedAndRemovedPackages() {
+        ApplicationView view = new ApplicationView();
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1), packageInfo("b", 10002, 1), packageInfo("c", 10003, 1)));
+        Page first = fetchAll(view);
+
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1), packageInfo("b", 10002, 2)));
+        Page delta = fetch(view, first.epoch, first.generation, -1, 0, Integer.MAX_VALUE);
+        assertFalse(delta.full);
+        assertEquals(first.generation + 1, delta.generation);
+        assertEquals(1, delta.total);
+        assertEquals(Arrays.asList("b"), delta.packages);
+        assertEquals(Arrays.asList("c"), delta.removed);
+
+        Page none = fetch(view, delta.epoch, delta.generation, -1, 0, Integer.MAX_VALUE);
+        assertFalse(none.full);
+        assertEquals(0, none.total);
+        assertTrue(none.removed.isEmpty());
+    }
+
+    @Test
+    public void unchangedRefreshKeepsGeneration() {
+        ApplicationView view = new ApplicationView();
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1)));
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1)));
+        assertEquals(1, fetchAll(view).generation);
+    }
+
+    @Test
+    public void reinstalledPackageIsNotRemoved() {
+        ApplicationView view = new ApplicationView();
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1)));
+        Page first = fetchAll(view);
+
+        view.refresh(new ArrayList<>());
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1)));
+        Page delta = fetch(view, first.epoch, first.generation, -1, 0, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("a"), delta.packages);
+        assertTrue(delta.removed.isEmpty());
+    }
+
+    @Test
+    public void paging() {
+        ApplicationView view = new ApplicationView();
+        List<PackageInfo> list = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            list.add(packageInfo("p" + i, 10000 + i, 1));
+        }
+        view.refresh(list);
+
+        Page page = fetch(view, 0, 0, -1, 0, 2);
+        assertEquals(5, page.total);
+        assertEquals(Arrays.asList("p0", "p1"), page.packages);
+
+        page = fetch(view, page.epoch, 0, -1, 2, 2);
+        assertEquals(Arrays.asList("p2", "p3"), page.packages);
+
+        page = fetch(view, page.epoch, 0, -1, 4, 2);
+        assertEquals(Arrays.asList("p4"), page.packages);
+
+        page = fetch(view, page.epoch, 0, -1, 6, 2);
+        assertEquals(5, page.total);
+        assertTrue(page.packages.isEmpty());
+    }
+
+    @Test
+    public void filteredByUser() {
+        ApplicationView view = new ApplicationView();
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1), packageInfo("a", 10 * 100000 + 10001, 1)));
+
+        assertEquals(2, fetchAll(view).total);
+        assertEquals(1, fetch(view, 0, 0, 10, 0, Integer.MAX_VALUE).total);
+        assertEquals(1, fetch(view, 0, 0, 0, 0, Integer.MAX_VALUE).total);
+    }
+
+    @Test
+    public void needsRefreshOnlyAfterInvalidate() {
+        ApplicationView view = new ApplicationView();
+        view.refresh(Arrays.asList(packageInfo("a", 10001, 1)));
+        long epoch = fetchAll(view).epoch;
+
+        assertTrue(view.needsRefresh(epoch));
+        assertFalse(view.needsRefresh(epoch));
+        // A client of another server process
+        assertTrue(view.needsRefresh(epoch + 1));
+
+        view.onPackageChanged("a", 10001);
+        assertTrue(view.needsRefresh(epoch));
+        assertFalse(view.needsRefresh(epoch));
+    }
+}
@@ -0,0 +1,57 @@
+package rikka.shizuku.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.time.Duration;
+
+@RunWith(RobolectricTestRunner.class)
+public class ExpiringIntSetTest {
+
+    private static final long TTL = 1000;
+
+    @Test
+    public void addAndRemove() {
+        ExpiringIntSet set = new ExpiringIntSet(TTL);
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+        assertTrue(set.add(2));
+        assertEquals(2, set.size());
+
+        assertTrue(set.remove(1));
+        assertFalse(set.remove(1));
+        assertTrue(set.add(1));
+    }
+
+    @Test
+    public void expiredEntryCanBeAddedAgain() {
+        ExpiringIntSet set = new ExpiringIntSet(TTL);
+        assertTrue(set.add(1));
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(TTL - 1));
+        assertFalse(set.add(1));
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(1));
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+    }
+
+    @Test
+    public void expiredEntriesArePruned() {
+        ExpiringIntSet set = new ExpiringIntSet(TTL);
+        for (int i = 0; i < 100; i++) {
+            set.add(i);
+        }
+        ShadowSystemClock.advanceBy(Duration.ofMillis(TTL));
+
+        // Re-adding an expired entry drops the others that have expired
+        assertTrue(set.add(0));
+        assertEquals(1, set.size());
+    }
+}
@@ -0,0 +1,184 @@
+package rikka.shizuku.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import rikka.shizuku.server.ktx.HandlerKt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ShizukuConfigStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    private static ShizukuConfig.PackageEntry entry(int uid, int flags, String packageName) {
+        ShizukuConfig.PackageEntry entry = new ShizukuConfig.PackageEntry(uid, flags);
+        entry.packages.add(packageName);
+        return entry;
+    }
+
+    private static ShizukuConfigStore.Importer importing(ShizukuConfig.PackageEntry... entries) {
+        return () -> {
+            List<ShizukuConfig.PackageEntry> list = new ArrayList<>();
+            for (ShizukuConfig.PackageEntry entry : entries) {
+                list.add(entry);
+            }
+            return new ShizukuConfig(list);
+        };
+    }
+
+    private static final ShizukuConfigStore.Importer NOT_IMPORTING = () -> {
+        throw new AssertionError("imported again");
+    };
+
+    static ShizukuConfig.PackageEntry find(ShizukuConfig config, int uid) {
+        for (ShizukuConfig.PackageEntry entry : config.packages) {
+            if (entry.uid == uid) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void importIsWrittenBeforeLoadReturns() {
+        ShizukuConfigStore store = new ShizukuConfigStore(dir);
+        ShizukuConfig config = store.load(importing(entry(10001, ConfigManager.FLAG_ALLOWED, "a")));
+        assertEquals(1, config.packages.size());
+        assertTrue(new File(dir, "shizuku.bin").exists());
+
+        // Killed before any compaction
+        store.appendUpdate(entry(10002, ConfigManager.FLAG_DENIED, "b"));
+
+        ShizukuConfig loaded = new ShizukuConfigStore(dir).load(NOT_IMPORTING);
+        assertEquals(2, loaded.packages.size());
+        assertEquals(ConfigManager.FLAG_ALLOWED, find(loaded, 10001).flags);
+        assertEquals(ConfigManager.FLAG_DENIED, find(loaded, 10002).flags);
+    }
+
+    @Test
+    public void journalsWithoutBaseAreReplayedOnImport() {
+        ShizukuConfigStore store = new ShizukuConfigStore(dir);
+        store.load(importing(entry(10001, ConfigManager.FLAG_ALLOWED, "a")));
+        store.appendUpdate(entry(10002, ConfigManager.FLAG_ALLOWED, "b"));
+        store.appendRemove(10001);
+        store.appendUpdate(entry(10001, ConfigManager.FLAG_DENIED, "a"));
+
+        // As if the import had never reached the disk
+        assertTrue(new File(dir, "shizuku.bin").delete());
+
+        ShizukuConfig loaded = new ShizukuConfigStore(dir).load(importing(
+                entry(10001, ConfigManager.FLAG_ALLOWED, "a"),
+                entry(10003, ConfigManager.FLAG_ALLOWED, "c")));
+        assertEquals(3, loaded.packages.size());
+        assertEquals(ConfigManager.FLAG_DENIED, find(loaded, 10001).flags);
+        assertNotNull(find(loaded, 10002));
+        assertNotNull(find(loaded, 10003));
+        assertTrue(new File(dir, "shizuku.bin").exists());
+    }
+
+    @Test
+    public void journalIsReplayedInOrder() {
+        ShizukuConfigStore store = new ShizukuConfigStore(dir);
+        store.load(importing(entry(10001, ConfigManager.FLAG_ALLOWED, "a")));
+        store.appendUpdate(entry(10002, ConfigManager.FLAG_ALLOWED, "b"));
+        store.appendUpdate(entry(10002, ConfigManager.FLAG_DENIED, "b"));
+        store.appendRemove(10001);
+        store.appendUpdate(entry(10003, ConfigManager.FLAG_ALLOWED, "c"));
+
+        ShizukuConfig loaded = new ShizukuConfigStore(dir).load(NOT_IMPORTING);
+        assertEquals(2, loaded.packages.size());
+        assertNull(find(loaded, 10001));
+        assertEquals(ConfigManager.FLAG_DENIED, find(loaded, 10002).flags);
+        assertTrue(find(loaded, 10002).packages.contains("b"));
+        assertEquals(ConfigManager.FLAG_ALLOWED, find(loaded, 10003).flags);
+    }
+
+    @Test
+    public void tornJournalRecordIsTruncated() throws IOException {
+        ShizukuConfigStore store = new ShizukuConfigStore(dir);
+        store.load(importing());
+        store.appendUpdate(entry(10001, ConfigManager.FLAG_ALLOWED, "a"));
+        store.appendUpdate(entry(10002, ConfigManager.FLAG_ALLOWED, "b"));
+
+        File journal = new File(dir, "shizuku.journal.0");
+        long length = journal.length();
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            // Length says 64 bytes, killed after 2 of them
+            out.write(new byte[]{0, 0, 0, 64, 1, 0});
+        }
+
+        ShizukuConfigStore reloaded = new ShizukuConfigStore(dir);
+        ShizukuConfig loaded = reloaded.load(NOT_IMPORTING);
+        assertEquals(2, loaded.packages.size());
+        assertEquals(length, journal.length());
+
+        reloaded.appendUpdate(entry(10003, ConfigManager.FLAG_DENIED, "c"));
+        loaded = new ShizukuConfigStore(dir).load(NOT_IMPORTING);
+        assertEquals(3, loaded.packages.size());
+        assertEquals(ConfigManager.FLAG_DENIED, find(loaded, 10003).flags);
+    }
+
+    @Test
+    public void compactionDropsCoveredJournalsAndKeepsPreviousBase() throws IOException {
+        ShizukuConfigStore store = new ShizukuConfigStore(dir);
+        ShizukuConfig config = store.load(importing(entry(10001, ConfigManager.FLAG_ALLOWED, "a")));
+
+        config.packages.add(entry(10002, ConfigManager.FLAG_ALLOWED, "b"));
+        store.appendUpdate(entry(10002, ConfigManager.FLAG_ALLOWED, "b"));
+        store.compact(ShizukuConfigStore.snapshot(config.packages));
+        shadowOf(HandlerKt.getWorkerHandler().getLooper()).idle();
+
+        assertTrue(new File(dir, "shizuku.bin.prev").exists());
+        // Still needed to recover from the previous base
+        assertTrue(new File(dir, "shizuku.journal.0").exists());
+
+        config.packages.add(entry(10003, ConfigManager.FLAG_ALLOWED, "c"));
+        store.appendUpdate(entry(10003, ConfigManager.FLAG_ALLOWED, "c"));
+        assertTrue(new File(dir, "shizuku.journal.1").exists());
+        store.compact(ShizukuConfigStore.snapshot(config.packages));
+        shadowOf(HandlerKt.getWorkerHandler().getLooper()).idle();
+
+        assertFalse(new File(dir, "shizuku.journal.0").exists());
+        assertTrue(new File(dir, "shizuku.journal.1").exists());
+
+        ShizukuConfig loaded = new ShizukuConfigStore(dir).load(NOT_IMPORTING);
+        assertEquals(3, loaded.packages.size());
+
+        // A corrupt base falls back to the previous one and the journals written since
+        store.appendUpdate(entry(10004, ConfigManager.FLAG_DENIED, "d"));
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "shizuku.bin"))) {
+            out.write(new byte[]{1, 2, 3, 4});
+        }
+
+        loaded = new ShizukuConfigStore(dir).load(NOT_IMPORTING);
+        assertEquals(4, loaded.packages.size());
+        assertNotNull(find(loaded, 10001));
+        assertNotNull(find(loaded, 10003));
+        assertEquals(ConfigManager.FLAG_DENIED, find(loaded, 10004).flags);
+    }
+}
@@ -0,0 +1,83 @@
+package rikka.shizuku.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class UserServiceRegistryTest {
+
+    private static UserServiceRecord record(String token) throws ReflectiveOperationException {
+        UserServiceRecord record = mock(UserServiceRecord.class);
+        Field field = UserServiceRecord.class.getDeclaredField("token");
+        field.setAccessible(true);
+        field.set(record, token);
+        return record;
+    }
+
+    @Test
+    public void indexedByTokenUidAndPackage() throws ReflectiveOperationException {
+        UserServiceRegistry registry = new UserServiceRegistry();
+        UserServiceRecord a1 = record("a1");
+        UserServiceRecord a2 = record("a2");
+        UserServiceRecord b = record("b");
+        registry.add(a1, "a", 10001);
+        registry.add(a2, "a", 10001);
+        registry.add(b, "b", 10002);
+
+        assertEquals(3, registry.size());
+        assertSame(a1, registry.getRecord("a1"));
+        assertEquals("a", registry.get("a2").packageName);
+        assertEquals(new HashSet<>(Arrays.asList(a1, a2)), new HashSet<>(registry.getRecordsForUid(10001)));
+        assertEquals(new HashSet<>(Arrays.asList(a1, a2)), new HashSet<>(registry.getRecordsForPackage("a")));
+        assertEquals(Arrays.asList(b), registry.getRecordsForUid(10002));
+        assertTrue(registry.getRecordsForUid(10003).isEmpty());
+        assertNull(registry.getRecord("c"));
+    }
+
+    @Test
+    public void removeUpdatesEveryIndex() throws ReflectiveOperationException {
+        UserServiceRegistry registry = new UserServiceRegistry();
+        UserServiceRecord a1 = record("a1");
+        UserServiceRecord a2 = record("a2");
+        registry.add(a1, "a", 10001);
+        registry.add(a2, "a", 10001);
+
+        assertSame(a1, registry.remove("a1").record);
+        assertNull(registry.remove("a1"));
+        assertNull(registry.getRecord("a1"));
+        assertEquals(Arrays.asList(a2), registry.getRecordsForUid(10001));
+        assertEquals(Arrays.asList(a2), registry.getRecordsForPackage("a"));
+
+        registry.remove("a2");
+        assertEquals(0, registry.size());
+        assertTrue(registry.getRecordsForUid(10001).isEmpty());
+        assertTrue(registry.getRecordsForPackage("a").isEmpty());
+    }
+
+    @Test
+    public void returnedListsAreSnapshots() throws ReflectiveOperationException {
+        UserServiceRegistry registry = new UserServiceRegistry();
+        registry.add(record("a1"), "a", 10001);
+        registry.add(record("a2"), "a", 10001);
+
+        // Callers remove records while iterating these
+        List<UserServiceRecord> records = registry.getRecordsForPackage("a");
+        for (UserServiceRecord record : records) {
+            registry.remove(record.token);
+        }
+        assertEquals(2, records.size());
+        assertEquals(0, registry.size());
+    }
+}
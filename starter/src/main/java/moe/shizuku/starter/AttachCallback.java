@@ -0,0 +1,86 @@
+package moe.shizuku.starter;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sent with a user service to the manager, which calls it once the service has been attached to
+ * the server (or could not be), so that the provider call doesn't have to wait for that.
+ */
+public class AttachCallback extends Binder {
+
+    private static final String TAG = "ShizukuAttachCallback";
+
+    public static final String DESCRIPTOR = "moe.shizuku.starter.AttachCallback";
+
+    /**
+     * oneway (server binder or null) -> ()
+     */
+    public static final int TRANSACTION_onAttached = IBinder.FIRST_CALL_TRANSACTION;
+
+    private static final String SERVER_DESCRIPTOR = "moe.shizuku.server.IShizukuService";
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private volatile IBinder server;
+
+    /**
+     * @return the server binder, or null if the service was not attached in time
+     */
+    public IBinder await(long timeout) {
+        try {
+            if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, String.format("not attached in %d ms", timeout));
+                return null;
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+        return server;
+    }
+
+    /**
+     * Called by the manager.
+     */
+    public static void send(IBinder callback, IBinder server) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeStrongBinder(server);
+            callback.transact(TRANSACTION_onAttached, data, null, IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    @Override
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        if (code != TRANSACTION_onAttached) {
+            return super.onTransact(code, data, reply, flags);
+        }
+
+        data.enforceInterface(DESCRIPTOR);
+        IBinder binder = data.readStrongBinder();
+        if (latch.getCount() == 0) {
+            return true;
+        }
+
+        try {
+            if (binder != null && !SERVER_DESCRIPTOR.equals(binder.getInterfaceDescriptor())) {
+                Log.w(TAG, "unexpected binder " + binder.getInterfaceDescriptor());
+                binder = null;
+            }
+        } catch (RemoteException e) {
+            binder = null;
+        }
+        server = binder;
+        latch.countDown();
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+package moe.shizuku.starter;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Control binder of a process that hosts several user services, only the server (which runs with
+ * the same uid) may call it.
+ */
+public class ServiceHost extends Binder {
+
+    private static final String TAG = "ShizukuServiceHost";
+
+    public static final String DESCRIPTOR = "moe.shizuku.starter.ServiceHost";
+
+    /**
+     * (token, package name, class name, uid, process name or null) -> service binder
+     */
+    public static final int TRANSACTION_createService = IBinder.FIRST_CALL_TRANSACTION;
+
+    /**
+     * () -> pid
+     */
+    public static final int TRANSACTION_getPid = IBinder.FIRST_CALL_TRANSACTION + 1;
+
+    /**
+     * (token) -> (), drop the reference to the service
+     */
+    public static final int TRANSACTION_removeService = IBinder.FIRST_CALL_TRANSACTION + 2;
+
+    /**
+     * oneway () -> ()
+     */
+    public static final int TRANSACTION_exit = IBinder.FIRST_CALL_TRANSACTION + 3;
+
+    // Binders are held here so that services stay alive
+    private final Map<String, IBinder> services = new ArrayMap<>();
+
+    public synchronized void addService(String token, IBinder service) {
+        services.put(token, service);
+    }
+
+    private static Object getActivityThread() throws ReflectiveOperationException {
+        Class<?> activityThreadClass = Class.forName("android.app.ActivityThread");
+        Object activityThread = activityThreadClass.getMethod("currentActivityThread").invoke(null);
+        if (activityThread == null) {
+            activityThread = activityThreadClass.getMethod("systemMain").invoke(null);
+        }
+        return activityThread;
+    }
+
+    /**
+     * Do what can be done before knowing the service, for a pre-warmed host.
+     */
+    public static void prepare() {
+        try {
+            getActivityThread();
+        } catch (Throwable tr) {
+            Log.w(TAG, "prepare", tr);
+        }
+    }
+
+    private static void setProcessName(String processName, int userId) {
+        try {
+            Process.class.getMethod("setArgV0", String.class).invoke(null, processName);
+        } catch (Throwable tr) {
+            Log.w(TAG, "setArgV0", tr);
+        }
+        try {
+            Class.forName("android.ddm.DdmHandleAppName").getMethod("setAppName", String.class, int.class).invoke(null, processName, userId);
+        } catch (Throwable tr) {
+            Log.w(TAG, "setAppName", tr);
+        }
+    }
+
+    /**
+     * Same as what UserService.create does for the first service, with the system context created
+     * by it (or created here if this process has no service yet).
+     */
+    public static IBinder createService(String packageName, String classname, int uid) throws ReflectiveOperationException {
+        Object activityThread = getActivityThread();
+        Context systemContext = (Context) activityThread.getClass().getMethod("getSystemContext").invoke(activityThread);
+
+        UserHandle userHandle = (UserHandle) UserHandle.class.getMethod("of", int.class).invoke(null, uid / 100000);
+        Context context = (Context) Context.class
+                .getMethod("createPackageContextAsUser", String.class, int.class, UserHandle.class)
+                .invoke(systemContext, packageName, Context.CONTEXT_INCLUDE_CODE | Context.CONTEXT_IGNORE_SECURITY, userHandle);
+
+        Class<?> serviceClass = context.getClassLoader().loadClass(classname);
+        try {
+            return (IBinder) serviceClass.getConstructor(Context.class).newInstance(context);
+        } catch (NoSuchMethodException e) {
+            return (IBinder) serviceClass.getConstructor().newInstance();
+        }
+    }
+
+    /**
+     * Services are created on the main thread like the first service of a process is, so that
+     * their constructors can create a {@link Handler} or use {@link Looper#myLooper()}.
+     */
+    private static IBinder createServiceOnMainThread(String packageName, String classname, int uid) throws Throwable {
+        FutureTask<IBinder> task = new FutureTask<>(() -> createService(packageName, classname, uid));
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            task.run();
+        } else if (!new Handler(Looper.getMainLooper()).post(task)) {
+            throw new IllegalStateException("main looper has quit");
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() != null ? e.getCause() : e;
+        }
+    }
+
+    @Override
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        if (code < IBinder.FIRST_CALL_TRANSACTION || code > IBinder.LAST_CALL_TRANSACTION) {
+            return super.onTransact(code, data, reply, flags);
+        }
+
+        data.enforceInterface(DESCRIPTOR);
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("ServiceHost is not allowed for uid " + Binder.getCallingUid());
+        }
+
+        switch (code) {
+            case TRANSACTION_createService: {
+                String token = data.readString();
+                String packageName = data.readString();
+                String classname = data.readString();
+                int uid = data.readInt();
+                String processName = data.readString();
+
+                if (processName != null) {
+                    setProcessName(processName, uid / 100000);
+                }
+
+                IBinder service;
+                try {
+                    service = createServiceOnMainThread(packageName, classname, uid);
+                } catch (Throwable tr) {
+                    Log.w(TAG, String.format("unable to create service %s/%s", packageName, classname), tr);
+                    reply.writeException(new IllegalStateException(tr.toString()));
+                    return true;
+                }
+                Log.i(TAG, String.format("created service %s/%s for %s", packageName, classname, token));
+
+                addService(token, service);
+                reply.writeNoException();
+                reply.writeStrongBinder(service);
+                return true;
+            }
+            case TRANSACTION_getPid: {
+                reply.writeNoException();
+                reply.writeInt(Process.myPid());
+                return true;
+            }
+            case TRANSACTION_removeService: {
+                String token = data.readString();
+                synchronized (this) {
+                    services.remove(token);
+                }
+                reply.writeNoException();
+                return true;
+            }
+            case TRANSACTION_exit: {
+                Log.i(TAG, "exiting...");
+                System.exit(0);
+                return true;
+            }
+        }
+        return super.onTransact(code, data, reply, flags);
+    }
+}
@@ -23,6 +23,28 @@ public class ServiceStarter {
 
     private static final String EXTRA_BINDER = "moe.shizuku.privileged.api.intent.extra.BINDER";
 
+    /**
+     * {@link ServiceHost} of the process, sent with the first service if the process is a shared host.
+     */
+    public static final String EXTRA_HOST_BINDER = "moe.shizuku.privileged.api.intent.extra.HOST_BINDER";
+
+    /**
+     * {@link AttachCallback} of the service, the manager replies with {@link #EXTRA_PENDING} if it
+     * will only call it later.
+     */
+    public static final String EXTRA_ATTACH_CALLBACK = "moe.shizuku.privileged.api.intent.extra.ATTACH_CALLBACK";
+    public static final String EXTRA_PENDING = "moe.shizuku.privileged.api.intent.extra.PENDING";
+
+    private static final long ATTACH_TIMEOUT = 10 * 1000;
+
+    private static final String ARG_HOST = "--host";
+    private static final String ARG_WARM = "--warm";
+    private static final String ARG_TOKEN = "--token=";
+
+    private static final String HOST_CMD_FORMAT = "(CLASSPATH='%s' %s /system/bin " +
+            "--nice-name='%s' moe.shizuku.starter.ServiceStarter " +
+            ARG_WARM + " " + ARG_TOKEN + "'%s')&";
+
     public static final String DEBUG_ARGS;
 
     static {
@@ -43,19 +65,62 @@ public class ServiceStarter {
 
     private static final String USER_SERVICE_CMD_FORMAT = "(CLASSPATH='%s' %s%s /system/bin " +
             "--nice-name='%s' moe.shizuku.starter.ServiceStarter " +
-            "--token='%s' --package='%s' --class='%s' --uid=%d%s)&";
+            "--token='%s' --package='%s' --class='%s' --uid=%d%s%s)&";
 
     // DeathRecipient will automatically be unlinked when all references to the
     // binder is dropped, so we hold the reference here.
     @SuppressWarnings("FieldCanBeLocal")
     private static IBinder shizukuBinder;
 
+    private static ServiceHost serviceHost;
+
     public static String commandForUserService(String appProcess, String managerApkPath, String token, String packageName, String classname, String processNameSuffix, int callingUid, boolean debug) {
+        return commandForUserService(appProcess, managerApkPath, token, packageName, classname, processNameSuffix, callingUid, debug, false);
+    }
+
+    /**
+     * @param host if the process should also be able to host other user services of the package,
+     *             see {@link ServiceHost}
+     */
+    public static String commandForUserService(String appProcess, String managerApkPath, String token, String packageName, String classname, String processNameSuffix, int callingUid, boolean debug, boolean host) {
         String processName = String.format("%s:%s", packageName, processNameSuffix);
         return String.format(Locale.ENGLISH, USER_SERVICE_CMD_FORMAT,
                 managerApkPath, appProcess, debug ? (" " + DEBUG_ARGS) : "",
                 processName,
-                token, packageName, classname, callingUid, debug ? (" " + "--debug-name=" + processName) : "");
+                token, packageName, classname, callingUid, debug ? (" " + "--debug-name=" + processName) : "",
+                host ? (" " + ARG_HOST) : "");
+    }
+
+    /**
+     * Command to start a host without any service, it will be given services through
+     * {@link ServiceHost} later.
+     */
+    public static String commandForServiceHost(String appProcess, String managerApkPath, String token, String processName) {
+        return String.format(Locale.ENGLISH, HOST_CMD_FORMAT, managerApkPath, appProcess, processName, token);
+    }
+
+    private static void runWarmHost(String[] args) {
+        String token = null;
+        for (String arg : args) {
+            if (arg.startsWith(ARG_TOKEN)) {
+                token = arg.substring(ARG_TOKEN.length());
+            }
+        }
+        if (token == null) {
+            System.exit(1);
+            return;
+        }
+
+        ServiceHost.prepare();
+        serviceHost = new ServiceHost();
+
+        // The host itself takes the place of the service
+        if (!sendBinder(serviceHost, token)) {
+            System.exit(1);
+        }
+
+        Looper.loop();
+        System.exit(0);
     }
 
     public static void main(String[] args) {
@@ -63,9 +128,23 @@ public class ServiceStarter {
             Looper.prepareMainLooper();
         }
 
+        for (String arg : args) {
+            if (ARG_WARM.equals(arg)) {
+                runWarmHost(args);
+                return;
+            }
+        }
+
         IBinder service;
         String token;
 
+        for (String arg : args) {
+            if (ARG_HOST.equals(arg)) {
+                serviceHost = new ServiceHost();
+                break;
+            }
+        }
+
         UserService.setTag(TAG);
         Pair<IBinder, String> result = UserService.create(args);
 
@@ -77,6 +156,10 @@ public class ServiceStarter {
         service = result.first;
         token = result.second;
 
+        if (serviceHost != null) {
+            serviceHost.addService(token, service);
+        }
+
         if (!sendBinder(service, token)) {
             System.exit(1);
         }
@@ -121,9 +204,15 @@ public class ServiceStarter {
                 Log.e(TAG, "retry works");
             }
 
+            AttachCallback callback = new AttachCallback();
+
             Bundle extra = new Bundle();
             extra.putParcelable(EXTRA_BINDER, new BinderContainer(binder));
+            extra.putParcelable(EXTRA_ATTACH_CALLBACK, new BinderContainer(callback));
             extra.putString(ShizukuApiConstants.USER_SERVICE_ARG_TOKEN, token);
+            if (serviceHost != null) {
+                extra.putParcelable(EXTRA_HOST_BINDER, new BinderContainer(serviceHost));
+            }
 
             Bundle reply = IContentProviderCompat.call(provider, null, null, name, "sendUserService", null, extra);
 
@@ -132,9 +221,15 @@ public class ServiceStarter {
 
                 Log.i(TAG, String.format("send binder to %s in user %d", packageName, userId));
                 BinderContainer container = reply.getParcelable(EXTRA_BINDER);
+                IBinder server = container != null ? container.binder : null;
+
+                if (server == null && reply.getBoolean(EXTRA_PENDING)) {
+                    Log.i(TAG, "waiting for the manager to attach the service");
+                    server = callback.await(ATTACH_TIMEOUT);
+                }
 
-                if (container != null && container.binder != null && container.binder.pingBinder()) {
-                    shizukuBinder = container.binder;
+                if (server != null && server.pingBinder()) {
+                    shizukuBinder = server;
                     shizukuBinder.linkToDeath(() -> {
                         Log.i(TAG, "exiting...");
                         System.exit(0);